@@ -1,24 +1,30 @@
 package com.gpergrossi.gui.chunks;
 
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class Chunk<T extends Chunk<T>> {
 	
+	// Chunk states, see ChunkManager for the transitions between them
+	static final int UNLOADED = 0, QUEUED_LOAD = 1, LOADING = 2, LOADED = 3, QUEUED_UNLOAD = 4, UNLOADING = 5;
+	
 	protected ChunkManager<T> manager;
 	protected ChunkLoader<T> loader;
 	
 	long lastSeen;
-	boolean loaded, loading, unloading;
+	final AtomicInteger state = new AtomicInteger(UNLOADED);
+	int loadSlot = -1, unloadSlot = -1;		// Place in the manager's queues (Use lock on manager.queueLock)
+	volatile boolean loadCancelled;			// Set when a LOADING chunk is no longer wanted (Use lock on manager.queueLock)
+	boolean unloadForced;					// Queued unload that touching cannot cancel (Use lock on manager.queueLock)
+	boolean wantedAgain;					// Touched again after loadCancelled was set, reload once cleaned up (Use lock on manager.queueLock)
+	volatile boolean degraded;				// Set before load() by the worker that takes the chunk
+	volatile long accountedBytes;			// getMemoryEstimate() when the chunk finished loading
 	protected final int chunkX, chunkY;
-	final Lock lock = new ReentrantLock(true);
 	
 	public Chunk(ChunkManager<T> manager, int chunkX, int chunkY) {
 		this.manager = manager;
 		this.loader = manager.getLoader();
 		this.chunkX = chunkX;
 		this.chunkY = chunkY;
-		loaded = false;
 	}
 	
 	public ChunkLoader<T> getChunkLoader() {
@@ -32,38 +38,68 @@ public abstract class Chunk<T extends Chunk<T>> {
 	public abstract void load();
 	public abstract void unload();
 	
-	boolean canLoad() {
-		return !loaded && !loading;
+	/**
+	 * @return true if load() has finished and unload() has not started
+	 */
+	boolean isLoaded() {
+		int current = state.get();
+		return current == LOADED || current == QUEUED_UNLOAD;
+	}
+
+	/**
+	 * True once the chunk has stopped being wanted during its load() call. Long running
+	 * load() implementations can check this and return early; unload() is called afterwards
+	 * to clean up, so it must cope with a partially loaded chunk.
+	 */
+	public boolean isLoadCancelled() {
+		return loadCancelled;
 	}
 	
-	boolean canUnload() {
-		return loaded && !unloading;
+	/**
+	 * True if this load was taken while the manager was over its queued load limit with the DEGRADE
+	 * policy. load() can do less work in that case; the chunk is unloaded and loaded again in full 
+	 * once the manager catches up.
+	 */
+	public boolean isDegraded() {
+		return degraded;
 	}
 	
-	boolean isLoaded() {
-		return loaded;
+	/**
+	 * Bytes held by this chunk while it is loaded, counted against the manager's maxLoadedBytes.
+	 * Called once after each load. 0 by default.
+	 */
+	public long getMemoryEstimate() {
+		return 0;
 	}
-
-	protected synchronized void internalLoad() {
-		if (this.loaded) {
-			System.err.println(this+" already loaded!");
-			return;
-		}
-		load();
-		loaded = true;
-		loading = false;
-		this.notifyAll();
+	
+	/**
+	 * Called on the worker after a load() or ChunkLoader.loadBatch() that was not cancelled, before the chunk becomes LOADED
+	 */
+	protected void afterLoad() {}
+	
+	/**
+	 * Called on the worker after every unload()
+	 */
+	protected void afterUnload() {}
+	
+	/**
+	 * Only called by the worker that moved the chunk from QUEUED_LOAD to LOADING, after load() 
+	 * or ChunkLoader.loadBatch(). The worker sets the next state.
+	 * @return false if the load was cancelled, in which case unload() has been called to clean up
+	 */
+	protected boolean internalFinishLoad() {
+		if (!loadCancelled) afterLoad();
+		if (!loadCancelled) return true;
+		internalUnload();
+		return false;
 	}
 	
-	protected synchronized void internalUnload() {
-		if (!this.loaded) {
-			System.err.println(this+" already unloaded!");
-			return;
-		}
+	/**
+	 * Only called by the worker that moved the chunk from QUEUED_UNLOAD to UNLOADING. The worker sets the next state.
+	 */
+	protected void internalUnload() {
 		unload();
-		loaded = false;
-		unloading = false;
-		this.notifyAll();
+		afterUnload();
 	}
 	
 	public String toString() {
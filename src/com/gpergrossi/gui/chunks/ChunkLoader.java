@@ -1,5 +1,7 @@
 package com.gpergrossi.gui.chunks;
 
+import java.util.List;
+
 public abstract class ChunkLoader<T extends Chunk<T>> {
 
 	ChunkManager<T> manager;
@@ -22,4 +24,21 @@ public abstract class ChunkLoader<T extends Chunk<T>> {
 		return 200;
 	}
 	
+	/**
+	 * Most chunks the manager should hand to loadBatch() at once. The manager collects 
+	 * queued chunks from aligned square blocks of about this many chunks.
+	 */
+	public int getBatchSize() {
+		return 1;
+	}
+	
+	/**
+	 * Loads every chunk in the list, which are all LOADING and near each other. Override 
+	 * to share work between neighboring chunks. Cancelled chunks (see Chunk.isLoadCancelled()) 
+	 * may be skipped, but each chunk must end up safe to unload().
+	 */
+	public void loadBatch(List<T> chunks) {
+		for (T chunk : chunks) chunk.load();
+	}
+	
 }
@@ -1,91 +1,191 @@
 package com.gpergrossi.gui.chunks;
 
-import java.awt.Point;
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+import com.gpergrossi.util.data.queue.IndexedHeap;
+import com.gpergrossi.util.geom.vectors.Int2D;
+
+/**
+ * Loads and unloads chunks on a pool of worker threads. Every chunk moves through the states
+ * UNLOADED -> QUEUED_LOAD -> LOADING -> LOADED -> QUEUED_UNLOAD -> UNLOADING -> UNLOADED, with each
+ * step taken by a compare and set on the chunk's state, so whichever thread wins a transition owns
+ * the chunk for that step. A queued load can be cancelled (QUEUED_LOAD -> UNLOADED) and so can a
+ * queued unload (QUEUED_UNLOAD -> LOADED). Moving a chunk into or out of a QUEUED state also
+ * adds it to or removes it from the matching queue, under a short lock on the queues. The queues
+ * are indexed heaps keyed by distance from the center, so each chunk knows its own place in them,
+ * and they are re-keyed in bulk when the center moves.
+ * <br/><br/>
+ * Only the chunk states are lock free. The queues were once concurrent skip lists, but a skip list
+ * cannot change a key in place, so re-keying and cancelling became remove and re-insert pairs that
+ * raced with requeues and lost or duplicated chunks. The queue lock is only held for heap operations,
+ * never during a load or unload, and no thread sleeps or spins waiting for it.
+ * <br/><br/>
+ * Work runs as drain tasks on an Executor: each task takes the most urgent job from the queues
+ * until they are empty, and at most maxConcurrency tasks run at once. By default the manager
+ * owns a pool of MIN_PRIORITY threads, but a shared pool (e.g. a ForkJoinPool or a virtual
+ * thread executor) can be supplied instead. Drain tasks give their thread back to the executor
+ * every few jobs so that they cannot starve other users of a shared pool. Subclasses can also hand
+ * workers other tasks with queueTask(), which run before the queued unloads and loads.
+ * <br/><br/>
+ * A chunk that stops being wanted while it is LOADING is flagged (see Chunk.isLoadCancelled()).
+ * When its load() returns, unload() is called to clean up and the chunk becomes UNLOADED. The flag
+ * is never cleared during a load, since load() may already have given up. A chunk wanted again
+ * before then is still cleaned up, and is queued for loading again afterwards.
+ * <br/><br/>
+ * Optional limits bound the number of queued loads, loaded chunks and the memory of loaded chunks
+ * (see Chunk.getMemoryEstimate()). They are enforced on each update() according to a ShedPolicy.
+ * Queued loads past the limit are deferred, farthest first, and queued again when there is room
+ * if they are still wanted. Loaded chunks past the limit are unloaded, starting with chunks nobody
+ * wants and then the farthest. ShedListeners are told about all work shed this way. Unloads queued
+ * to shed a chunk or to reload a degraded one cannot be cancelled by touching the chunk.
+ */
 public abstract class ChunkManager<T extends Chunk<T>> {
 
-	protected final Comparator<T> OLDEST_CHUNK_FIRST = new Comparator<T>() {
-		public int compare(T o1, T o2) {
-			return (int) (o1.lastSeen - o2.lastSeen);
-		}
-	};
+	public static enum ShedPolicy {
+		/** Queued loads past maxQueuedLoads are deferred, farthest first */
+		DROP_FARTHEST,
+		/** While past maxQueuedLoads, workers take 4 times the loader's batch size of adjacent chunks
+		 * per job so the queue drains faster. Loads are only deferred past twice the limit. */
+		COALESCE,
+		/** While past maxQueuedLoads, chunks are loaded degraded (see Chunk.isDegraded()) and reloaded in
+		 * full once the queue is empty. Loads are only deferred past twice the limit. */
+		DEGRADE
+	}
 	
-	protected final Comparator<T> CLOSEST_CHUNK_FIRST = new Comparator<T>() {
-		public int compare(T o1, T o2) {
-			Point pt1 = new Point(o1.chunkX, o1.chunkY);
-			Point pt2 = new Point(o2.chunkX, o2.chunkY);
-			double dist1 = pt1.distanceSq(center);
-			double dist2 = pt2.distanceSq(center);
-			return (int) (dist1 - dist2);
+	public static enum ShedReason {
+		/** A queued load was cancelled, it is queued again when there is room if the chunk is still wanted */
+		LOAD_DEFERRED,
+		/** A wanted chunk was unloaded to get back under maxLoaded or maxLoadedBytes, it is deferred like a load */
+		UNLOADED,
+		/** A chunk finished loading degraded */
+		DEGRADED
+	}
+	
+	public static interface ShedListener<T> {
+		/**
+		 * Called on the thread calling update(), except for DEGRADED which is reported by the worker that loaded the chunk
+		 */
+		public void chunkShed(T chunk, ShedReason reason);
+	}
+
+	private final IndexedHeap.SlotAccessor<T> loadSlots = new IndexedHeap.SlotAccessor<T>() {
+		public int getSlot(T chunk) {
+			return chunk.loadSlot;
+		}
+		public void setSlot(T chunk, int slot) {
+			chunk.loadSlot = slot;
 		}
 	};
 	
-	protected final Comparator<T> FARTHEST_CHUNK_FIRST = new Comparator<T>() {
-		public int compare(T o1, T o2) {
-			Point pt1 = new Point(o1.chunkX, o1.chunkY);
-			Point pt2 = new Point(o2.chunkX, o2.chunkY);
-			double dist1 = pt1.distanceSq(center);
-			double dist2 = pt2.distanceSq(center);
-			return (int) (dist2 - dist1);
+	private final IndexedHeap.SlotAccessor<T> unloadSlots = new IndexedHeap.SlotAccessor<T>() {
+		public int getSlot(T chunk) {
+			return chunk.unloadSlot;
+		}
+		public void setSlot(T chunk, int slot) {
+			chunk.unloadSlot = slot;
 		}
 	};
-
-	protected Thread[] workers;
-	protected Object workAvailable = new Object();	// Notification object to tell worker threads of work
-	protected boolean workersRunning = false;			// Running condition for quick kill of worker threads
-	protected long currentViewIteration;				// Used to keep track of how long a chunk has been out of view
-	protected Point center = new Point(0,0);
 	
+	private static final int JOBS_PER_DRAIN = 16;		// Jobs a drain task does before resubmitting itself
 	
-	protected ChunkLoader<T> loader;
-	protected double chunkSize;
+	private volatile Executor executor;
+	private final boolean ownsExecutor;					// Executor is a worker pool created by start() and shut down by stop()
+	private final int maxConcurrency;
+	private final AtomicInteger activeDrains;			// Drain tasks submitted or running
+	private final Object drainMonitor = new Object();	// Notified when the last drain task finishes after stop()
+	private final Runnable drainTask = this::drain;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();	// See queueTask()
+	private final LongAdder cancelledLoads = new LongAdder();
+	private final LongAdder failedJobs = new LongAdder();
 	
-	protected final Queue<T> loadingQueue;		// Queue of chunks to be loaded (Use lock)
-	protected Lock loadingQueueLock = new ReentrantLock(true);
-	
-	protected final Queue<T> unloadingQueue;	// Queue of chunks to be unloaded (Use lock)
-	protected Lock unloadingQueueLock = new ReentrantLock(true);
-	
-	protected final Queue<T> loadedChunks;		// List of chunk sorted by age
-	protected Lock loadedChunksLock = new ReentrantLock(true);	
+	private volatile int maxQueuedLoads = Integer.MAX_VALUE;
+	private int maxLoaded = Integer.MAX_VALUE;
+	private long maxLoadedBytes = Long.MAX_VALUE;
+	private volatile ShedPolicy shedPolicy = ShedPolicy.DROP_FARTHEST;
+	private final List<ShedListener<T>> shedListeners = new CopyOnWriteArrayList<>();
+	private final AtomicLong loadedBytes = new AtomicLong();
+	private final Set<T> deferredLoads = new HashSet<>();		// Shed chunks to load again when there is room (update() thread only)
+	private final Set<T> degradedChunks = ConcurrentHashMap.newKeySet();
 	
+	protected volatile boolean workersRunning = false;	// Running condition for quick kill of worker threads
+	protected long currentViewIteration;				// Used to keep track of how long a chunk has been out of view
+	protected volatile Int2D center = new Int2D(0,0);
+
+	private Int2D queuedCenter;		// center the queue keys were computed for (Use lock on queueLock)
+
+	protected ChunkLoader<T> loader;
+	protected double chunkSize;
+
+	protected final Object queueLock = new Object();
+	protected final IndexedHeap<T> loadingQueue;		// Closest chunks first (Use lock on queueLock)
+	protected final IndexedHeap<T> unloadingQueue;		// Farthest chunks first (Use lock on queueLock)
+	protected final Set<T> loadedChunks;
+
 	public ChunkManager(ChunkLoader<T> loader) {
 		this(loader, 4, 40);
 	}
-	
+
 	public ChunkManager(ChunkLoader<T> loader, int numWorkers) {
 		this(loader, numWorkers, 40);
 	}
-	
+
+	/**
+	 * Loads chunks on a pool of numWorkers MIN_PRIORITY threads owned by this manager
+	 */
 	public ChunkManager(ChunkLoader<T> loader, int numWorkers, int initialQueueSize) {
+		this(loader, null, numWorkers, initialQueueSize, true);
+	}
+	
+	/**
+	 * Loads chunks on a shared executor, which stop() does not shut down
+	 * @param maxConcurrency - maximum number of chunks loaded or unloaded at once
+	 */
+	public ChunkManager(ChunkLoader<T> loader, Executor executor, int maxConcurrency, int initialQueueSize) {
+		this(loader, executor, maxConcurrency, initialQueueSize, false);
+		if (executor == null) throw new IllegalArgumentException("executor cannot be null");
+	}
+	
+	private ChunkManager(ChunkLoader<T> loader, Executor executor, int maxConcurrency, int initialQueueSize, boolean ownsExecutor) {
+		if (maxConcurrency < 1) throw new IllegalArgumentException("need at least one worker");
 		this.loader = loader;
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+		this.maxConcurrency = maxConcurrency;
+		this.activeDrains = new AtomicInteger();
 		this.chunkSize = loader.getChunkSize();
-		loadingQueue = new StochasticPriorityQueue<T>(initialQueueSize, CLOSEST_CHUNK_FIRST);
-		unloadingQueue = new StochasticPriorityQueue<T>(initialQueueSize, FARTHEST_CHUNK_FIRST);
-		loadedChunks = new StochasticPriorityQueue<T>(initialQueueSize, OLDEST_CHUNK_FIRST);
-		workers = new Thread[numWorkers];
-		for (int i = 0; i < numWorkers; i++) {
-			workers[i] = new Thread(new WorkerTask<T>(this));
-			workers[i].setName("ChunkManager worker thread #"+(i+1)+"/"+numWorkers+"");
-			workers[i].setPriority(Thread.MIN_PRIORITY);
-		}
+		loadingQueue = new IndexedHeap<>(4, initialQueueSize, loadSlots);
+		unloadingQueue = new IndexedHeap<>(4, initialQueueSize, unloadSlots);
+		loadedChunks = ConcurrentHashMap.newKeySet(initialQueueSize);
+		queuedCenter = center;
 		currentViewIteration = 0;
 		this.loader.setManager(this);
 	}
-	
+
 	/**
 	 * Start all worker threads
 	 */
 	public void start() {
 		startWorkers();
 	}
-	
+
 	/**
 	 * Stop all worker threads
 	 */
@@ -96,25 +196,104 @@ public abstract class ChunkManager<T extends Chunk<T>> {
 	public ChunkLoader<T> getLoader() {
 		return loader;
 	}
-	
+
 	/**
 	 * @return How many chunks are loaded?
 	 */
 	public int getNumLoaded() {
-		acquire("loadedChunks", loadedChunksLock);
-		int num = loadedChunks.size();
-		release("loadedChunks", loadedChunksLock);
-		return num;
+		return loadedChunks.size();
+	}
+	
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+	
+	/**
+	 * @return How many loads were cancelled while in progress and cleaned up by unload()
+	 */
+	public long getNumCancelledLoads() {
+		return cancelledLoads.sum();
+	}
+	
+	/**
+	 * @return How many jobs threw from load(), unload() or loadBatch(). Their chunks were returned to UNLOADED.
+	 */
+	public long getNumFailedJobs() {
+		return failedJobs.sum();
+	}
+	
+	/**
+	 * @return Sum of Chunk.getMemoryEstimate() over loaded chunks, as estimated when each finished loading
+	 */
+	public long getLoadedBytes() {
+		return loadedBytes.get();
+	}
+	
+	/**
+	 * @return How many shed chunks are waiting for room to be queued again
+	 */
+	public int getNumDeferred() {
+		return deferredLoads.size();
+	}
+	
+	public void setMaxQueuedLoads(int maxQueuedLoads) {
+		if (maxQueuedLoads < 1) throw new IllegalArgumentException("maxQueuedLoads must be at least 1");
+		this.maxQueuedLoads = maxQueuedLoads;
+	}
+	
+	public int getMaxQueuedLoads() {
+		return maxQueuedLoads;
+	}
+	
+	/**
+	 * Limits loaded chunks, including chunks being loaded. Queued loads are also limited to the room left under it.
+	 */
+	public void setMaxLoaded(int maxLoaded) {
+		if (maxLoaded < 1) throw new IllegalArgumentException("maxLoaded must be at least 1");
+		this.maxLoaded = maxLoaded;
+	}
+	
+	public int getMaxLoaded() {
+		return maxLoaded;
+	}
+	
+	/**
+	 * Limits getLoadedBytes()
+	 */
+	public void setMaxLoadedBytes(long maxLoadedBytes) {
+		if (maxLoadedBytes < 0) throw new IllegalArgumentException("maxLoadedBytes cannot be negative");
+		this.maxLoadedBytes = maxLoadedBytes;
+	}
+	
+	public long getMaxLoadedBytes() {
+		return maxLoadedBytes;
+	}
+	
+	public void setShedPolicy(ShedPolicy policy) {
+		if (policy == null) throw new IllegalArgumentException("policy cannot be null");
+		this.shedPolicy = policy;
+	}
+	
+	public ShedPolicy getShedPolicy() {
+		return shedPolicy;
+	}
+	
+	public void addShedListener(ShedListener<T> listener) {
+		shedListeners.add(listener);
 	}
 	
+	public void removeShedListener(ShedListener<T> listener) {
+		shedListeners.remove(listener);
+	}
+
 	/**
 	 * Returns the chunk object for position x, y. Does not load it. See: loadChunk(), touch()
 	 */
 	public T getChunk(double x, double y) {
-		Point p = getChunkCoordinate(x, y);
-		return loader.getChunk(p.x, p.y);
+		Int2D p = getChunkCoordinate(x, y);
+		return loader.getChunk(p.x(), p.y());
 	}
-	
+
 	/**
 	 * Queues the chunk for loading. See: getChunk(), unload(), touch()
 	 */
@@ -122,7 +301,7 @@ public abstract class ChunkManager<T extends Chunk<T>> {
 		queueLoad(chunk);
 		touch(chunk);
 	}
-	
+
 	/**
 	 * Queues the chunk for unloading. See: getChunk(), loadChunk()
 	 */
@@ -130,25 +309,25 @@ public abstract class ChunkManager<T extends Chunk<T>> {
 		queueUnload(chunk);
 		touch(chunk);
 	}
-	
+
 	/**
 	 * Should touch all chunks that should continue to load or stay loaded. see touch()
 	 * update the 'center' variable for determining load and unload priority. center represents
-	 * the center of the visible area of chunks. chunks in the loading queue are more likely
-	 * to load first if they are closer, while chunks in the unloading queue are more likely
-	 * to unload first if they are farther.
+	 * the center of the visible area of chunks. chunks in the loading queue load first if
+	 * they are closer, while chunks in the unloading queue unload first if they are farther.
 	 */
 	public abstract void touchAll();
-	
+
 	/**
 	 * Call once per update() to keep chunks "relevant". Relevant chunks will load and stay loaded
 	 * until they have gone some number of iterations without being touched. See: ChunkLoader.getMaxAge()
 	 */
 	public void touch(T chunk) {
 		chunk.lastSeen = currentViewIteration;
-		if (!chunk.isLoaded()) queueLoad(chunk);
+		if (deferredLoads.contains(chunk)) return;	// Queued again by retryDeferred() once there is room
+		queueLoad(chunk);
 	}
-	
+
 	/**
 	 * Increases the age of all chunks and manages the loading and unloading queues
 	 */
@@ -159,294 +338,551 @@ public abstract class ChunkManager<T extends Chunk<T>> {
 		// Touch currently in use chunks
 		touchAll();
 		
-		// Unload old chunks
-		acquire("loadedChunks", loadedChunksLock);
-		long maxAge = loader.getMaxChunkAge();
-		T chunk = loadedChunks.peek();
-		while (chunk != null && (currentViewIteration - chunk.lastSeen) > maxAge) {
-			queueUnload(chunk);
-			loadedChunks.remove(chunk);
-			chunk = loadedChunks.peek();
+		unloadOldChunks();
+		cancelStaleLoads();
+		updatePriorities();
+		enforceLimits();
+	}
+	
+	/**
+	 * Should a chunk that is not loaded be loaded? Used to decide which shed chunks to queue again.
+	 * By default, chunks touched within the loader's max chunk age are wanted.
+	 */
+	protected boolean isWanted(T chunk) {
+		return (currentViewIteration - chunk.lastSeen) <= loader.getMaxChunkAge();
+	}
+	
+	/**
+	 * Queues deferred chunks while there is room, then sheds queued loads and loaded chunks past the limits
+	 */
+	protected void enforceLimits() {
+		retryDeferred();
+		shedQueuedLoads();
+		shedLoadedChunks();
+		if (shedPolicy == ShedPolicy.DEGRADE) upgradeDegraded();
+	}
+	
+	/**
+	 * Most queued loads allowed before loads are deferred
+	 * @param slack - multiple of maxQueuedLoads to allow
+	 */
+	private int getQueuedLoadLimit(int slack) {
+		int numLoaded = loadedChunks.size();
+		long limit = Math.min((long) maxQueuedLoads * slack, (long) maxLoaded - numLoaded);
+		
+		// Room under maxLoadedBytes, assuming new chunks are the size of the average loaded chunk
+		long bytes = loadedBytes.get();
+		if (maxLoadedBytes != Long.MAX_VALUE && numLoaded > 0 && bytes > 0) {
+			limit = Math.min(limit, (maxLoadedBytes - bytes) / Math.max(1, bytes / numLoaded));
+		}
+		return (int) Math.max(0, Math.min(limit, Integer.MAX_VALUE));
+	}
+	
+	private void retryDeferred() {
+		if (deferredLoads.isEmpty()) return;
+		List<T> ready = new ArrayList<>();
+		for (Iterator<T> iterator = deferredLoads.iterator(); iterator.hasNext(); ) {
+			T chunk = iterator.next();
+			int current = chunk.state.get();
+			if (current == Chunk.QUEUED_UNLOAD || current == Chunk.UNLOADING) continue;
+			if (current != Chunk.UNLOADED || !isWanted(chunk)) iterator.remove();
+			else ready.add(chunk);
 		}
-		release("loadedChunks", loadedChunksLock);
 		
-		// Stop loading off-screen chunks
-		acquire("loadingQueue", loadingQueueLock);
-		Iterator<T> iterator = loadingQueue.iterator();
-		while (iterator.hasNext()) {
-			chunk = iterator.next();
-			if ((currentViewIteration - chunk.lastSeen) > 0) {
-				chunk.loading = false;
-				iterator.remove();
-			}
+		int room;
+		synchronized (queueLock) {
+			room = getQueuedLoadLimit(1) - loadingQueue.size();
+		}
+		if (room <= 0) return;
+		if (ready.size() > room) {
+			ready.sort((a, b) -> Double.compare(getLoadPriority(a), getLoadPriority(b)));
+			ready = ready.subList(0, room);
+		}
+		for (T chunk : ready) {
+			deferredLoads.remove(chunk);
+			queueLoad(chunk);
 		}
-		release("loadingQueue", loadingQueueLock);
 	}
-
-	protected Point getChunkCoordinate(double x, double y) {
-		Point coord = new Point();
-		coord.x = (int) Math.floor(x / chunkSize);
-		coord.y = (int) Math.floor(y / chunkSize);
-		return coord;
+	
+	private void shedQueuedLoads() {
+		List<T> shed;
+		synchronized (queueLock) {
+			int limit = getQueuedLoadLimit(shedPolicy == ShedPolicy.DROP_FARTHEST ? 1 : 2);
+			int excess = loadingQueue.size() - limit;
+			if (excess <= 0) return;
+			
+			List<T> queued = new ArrayList<>(loadingQueue.size());
+			for (int i = 0; i < loadingQueue.size(); i++) queued.add(loadingQueue.get(i));
+			queued.sort((a, b) -> Double.compare(loadingQueue.getKey(b), loadingQueue.getKey(a)));
+			shed = new ArrayList<>(queued.subList(0, excess));
+			for (T chunk : shed) cancelLoad(chunk);
+		}
+		for (T chunk : shed) {
+			deferredLoads.add(chunk);
+			reportShed(chunk, ShedReason.LOAD_DEFERRED);
+		}
 	}
 	
-	protected void queueLoad(T chunk) {
-		if (!chunk.canLoad()) return;
+	private void shedLoadedChunks() {
+		long excessChunks = (long) loadedChunks.size() - maxLoaded;
+		long excessBytes = loadedBytes.get() - maxLoadedBytes;
+		if (excessChunks <= 0 && excessBytes <= 0) return;
 		
-		acquire("unloadingQueue/"+chunk, unloadingQueueLock, chunk.lock);
-		
-		if (unloadingQueue.remove(chunk)) {
-			chunk.unloading = false;
+		// Chunks already on their way out
+		synchronized (queueLock) {
+			excessChunks -= unloadingQueue.size();
+			for (int i = 0; i < unloadingQueue.size(); i++) excessBytes -= unloadingQueue.get(i).accountedBytes;
 		}
+		if (excessChunks <= 0 && excessBytes <= 0) return;
 		
-		release("unloadingQueue/"+chunk, unloadingQueueLock, chunk.lock);
-		acquire("loadingQueue/"+chunk, loadingQueueLock, chunk.lock);
+		List<T> unwanted = new ArrayList<>();
+		List<T> wanted = new ArrayList<>();
+		for (T chunk : loadedChunks) {
+			if (chunk.state.get() != Chunk.LOADED) continue;
+			if (isWanted(chunk)) wanted.add(chunk);
+			else unwanted.add(chunk);
+		}
+		unwanted.sort((a, b) -> Double.compare(distanceSq(b), distanceSq(a)));
+		wanted.sort((a, b) -> Double.compare(distanceSq(b), distanceSq(a)));
+		unwanted.addAll(wanted);
 		
-		if (!loadingQueue.contains(chunk) && chunk.canLoad()) {
-			chunk.loading = true;
-			loadingQueue.offer(chunk);
-			debug("Added "+chunk+" to load queue");
-			synchronized (workAvailable) {
-				workAvailable.notify();
+		for (T chunk : unwanted) {
+			if (excessChunks <= 0 && excessBytes <= 0) break;
+			excessChunks--;
+			excessBytes -= chunk.accountedBytes;
+			forceUnload(chunk);
+			if (isWanted(chunk)) {
+				deferredLoads.add(chunk);
+				reportShed(chunk, ShedReason.UNLOADED);
 			}
 		}
-
-		release("loadingQueue/"+chunk, loadingQueueLock, chunk.lock);
 	}
 	
-	protected void queueUnload(T chunk) {
-		if (!chunk.canUnload()) return;
-		
-		acquire("loadingQueue/"+chunk, loadingQueueLock, chunk.lock);
-		
-		if (loadingQueue.remove(chunk)) {
-			chunk.loading = false;
+	/**
+	 * Once nothing is queued, reloads wanted degraded chunks in full, a few at a time.
+	 * Chunks stay in degradedChunks until they are unloaded.
+	 */
+	private void upgradeDegraded() {
+		if (degradedChunks.isEmpty()) return;
+		synchronized (queueLock) {
+			if (!loadingQueue.isEmpty()) return;
+		}
+		int upgrades = maxConcurrency;
+		for (Iterator<T> iterator = degradedChunks.iterator(); iterator.hasNext() && upgrades > 0; ) {
+			T chunk = iterator.next();
+			if (chunk.state.get() != Chunk.LOADED || !isWanted(chunk)) continue;
+			forceUnload(chunk);
+			deferredLoads.add(chunk);
+			upgrades--;
+		}
+	}
+	
+	private void reportShed(T chunk, ShedReason reason) {
+		for (ShedListener<T> listener : shedListeners) listener.chunkShed(chunk, reason);
+	}
+	
+	/**
+	 * Queues every loaded chunk that has not been touched for more than the loader's max chunk age for unloading
+	 */
+	protected void unloadOldChunks() {
+		long maxAge = loader.getMaxChunkAge();
+		for (T chunk : loadedChunks) {
+			if ((currentViewIteration - chunk.lastSeen) > maxAge) queueUnload(chunk);
+		}
+	}
+	
+	/**
+	 * Stops loading chunks that were not touched this update
+	 */
+	protected void cancelStaleLoads() {
+		synchronized (queueLock) {
+			loadingQueue.removeIf(chunk -> (currentViewIteration - chunk.lastSeen) > 0 && chunk.state.compareAndSet(Chunk.QUEUED_LOAD, Chunk.UNLOADED));
 		}
+	}
+	
+	/**
+	 * Re-keys the queues if the center has moved, since priorities are distances from the center
+	 */
+	protected void updatePriorities() {
+		synchronized (queueLock) {
+			if (center.equals(queuedCenter)) return;
+			queuedCenter = center;
+			loadingQueue.rekeyAll(this::getLoadPriority);
+			unloadingQueue.rekeyAll(this::getUnloadPriority);
+		}
+	}
+	
+	protected Int2D getChunkCoordinate(double x, double y) {
+		return new Int2D((int) Math.floor(x / chunkSize), (int) Math.floor(y / chunkSize));
+	}
+
+	/**
+	 * Distance squared from the chunk to the center, in chunks
+	 */
+	protected double distanceSq(T chunk) {
+		double dx = chunk.chunkX - center.x();
+		double dy = chunk.chunkY - center.y();
+		return dx*dx + dy*dy;
+	}
+
+	/**
+	 * Chunks with lower load priority are loaded first
+	 */
+	protected double getLoadPriority(T chunk) {
+		return distanceSq(chunk);
+	}
+
+	/**
+	 * Chunks with lower unload priority are unloaded first
+	 */
+	protected double getUnloadPriority(T chunk) {
+		return -distanceSq(chunk);
+	}
 
-		release("loadingQueue/"+chunk, loadingQueueLock, chunk.lock);
-		acquire("unloadingQueue/"+chunk, unloadingQueueLock, chunk.lock);
+	/**
+	 * Queues an unloaded chunk for loading, or cancels the pending unload of a loaded chunk
+	 */
+	protected void queueLoad(T chunk) {
+		int current = chunk.state.get();
+		if (current == Chunk.LOADING) {
+			if (chunk.loadCancelled) synchronized (queueLock) {
+				if (chunk.state.get() == Chunk.LOADING) chunk.wantedAgain = true;
+			}
+			return;
+		}
+		if (current != Chunk.UNLOADED && current != Chunk.QUEUED_UNLOAD) return;
 		
-		if (!unloadingQueue.contains(chunk) && chunk.canUnload()) {
-			chunk.unloading = true;
-			unloadingQueue.offer(chunk);
-			debug("Added "+chunk+" to unload queue");
-			synchronized (workAvailable) {
-				workAvailable.notify();
+		synchronized (queueLock) {
+			if (!chunk.unloadForced && chunk.state.compareAndSet(Chunk.QUEUED_UNLOAD, Chunk.LOADED)) {
+				unloadingQueue.remove(chunk);
+				debug("Cancelled unload of "+chunk);
+				return;
 			}
+			if (!chunk.state.compareAndSet(Chunk.UNLOADED, Chunk.QUEUED_LOAD)) return;
+			loadingQueue.offer(chunk, getLoadPriority(chunk));
 		}
-
-		release("unloadingQueue/"+chunk, unloadingQueueLock, chunk.lock);
+		debug("Added "+chunk+" to load queue");
+		signalWork();
 	}
 	
-	private void addLoaded(T chunk) {
-		acquire("loadedChunks", loadedChunksLock);
-		loadedChunks.offer(chunk);
-		release("loadedChunks", loadedChunksLock);
+	/**
+	 * Queues a loaded chunk for unloading, or cancels the pending load of a queued chunk
+	 */
+	protected void queueUnload(T chunk) {
+		int current = chunk.state.get();
+		if (current != Chunk.LOADED && current != Chunk.QUEUED_LOAD) return;
+		
+		synchronized (queueLock) {
+			if (cancelLoad(chunk)) return;
+			if (!chunk.state.compareAndSet(Chunk.LOADED, Chunk.QUEUED_UNLOAD)) return;
+			unloadingQueue.offer(chunk, getUnloadPriority(chunk));
+		}
+		debug("Added "+chunk+" to unload queue");
+		signalWork();
 	}
 	
-	private static void debug(String string) {
-		//System.out.println("[ChunkManager] "+string);
+	/**
+	 * Queues a loaded chunk for an unload that touch() and queueLoad() cannot cancel
+	 */
+	private void forceUnload(T chunk) {
+		synchronized (queueLock) {
+			if (chunk.state.get() == Chunk.QUEUED_UNLOAD) {
+				chunk.unloadForced = true;
+				return;
+			}
+			if (!chunk.state.compareAndSet(Chunk.LOADED, Chunk.QUEUED_UNLOAD)) return;
+			chunk.unloadForced = true;
+			unloadingQueue.offer(chunk, getUnloadPriority(chunk));
+		}
+		debug("Added "+chunk+" to unload queue, forced");
+		signalWork();
 	}
 	
-	protected static void acquire(String resource, Lock... locks) {
-		boolean allAcquired = false;
-		debug(Thread.currentThread().getName()+" acquiring "+resource+" ("+locks.length+" locks)");
-		int sleepTime = 50;
-		while (!allAcquired) {
-			int i;
-			allAcquired = true;
-			for (i = 0; i < locks.length; i++) {
-				try {
-					boolean acquired = locks[i].tryLock(50, TimeUnit.MILLISECONDS);
-					if (!acquired) {
-						allAcquired = false;
-						break;
-					}
-				} catch(InterruptedException e) {
-					e.printStackTrace();
-				}
-			}
-			if (!allAcquired) {
-				Lock failed = locks[i];
-				for (i--; i >= 0; i--) {
-					locks[i].unlock();
-				}
-				debug(Thread.currentThread().getName()+" acquire failed. ("+failed+") Sleeping...");
-				try {
-					Thread.sleep(sleepTime);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
+	/**
+	 * Removes a queued chunk from the loading queue, or flags a LOADING chunk so that
+	 * its load is abandoned and cleaned up (see Chunk.isLoadCancelled())
+	 * @return true if the chunk was queued for loading and no longer is
+	 */
+	protected boolean cancelLoad(T chunk) {
+		synchronized (queueLock) {
+			if (!chunk.state.compareAndSet(Chunk.QUEUED_LOAD, Chunk.UNLOADED)) {
+				if (chunk.state.get() == Chunk.LOADING) {
+					chunk.loadCancelled = true;
+					chunk.wantedAgain = false;
 				}
-				sleepTime *= 2;
-			} else {
-				sleepTime = 50;
+				return false;
 			}
+			loadingQueue.remove(chunk);
 		}
+		debug("Cancelled load of "+chunk);
+		return true;
 	}
 	
-	protected static void release(String resource, Lock... locks) {
-		debug(Thread.currentThread().getName()+" releasing "+resource+" ("+locks.length+" locks)");
-		for (int i = locks.length-1; i >= 0; i--) {
-			locks[i].unlock();
+	/**
+	 * Runs the task on a worker, before any queued unloads and loads. Tasks queued while 
+	 * the workers are stopped run after the next start(). A task that throws is counted
+	 * like a failed job and handed to the thread's uncaught exception handler.
+	 */
+	protected void queueTask(Runnable task) {
+		tasks.add(task);
+		signalWork();
+	}
+	
+	private boolean hasWork() {
+		if (!tasks.isEmpty()) return true;
+		synchronized (queueLock) {
+			return !loadingQueue.isEmpty() || !unloadingQueue.isEmpty();
 		}
 	}
 	
-	private void startWorkers() {
-		debug("Starting worker threads...");
-		workersRunning = true;
-		for (int i = 0; i < workers.length; i++) {
-			workers[i].start();
-			debug(workers[i].getName()+" has been started.");
+	/**
+	 * Submits another drain task unless maxConcurrency are already active
+	 */
+	private void signalWork() {
+		if (!workersRunning) return;
+		while (true) {
+			int active = activeDrains.get();
+			if (active >= maxConcurrency) return;
+			if (activeDrains.compareAndSet(active, active+1)) break;
 		}
-		debug("Started.");
+		submitDrain();
 	}
 	
-	private void stopWorkers() {
-		debug("Stopping worker threads...");
-		workersRunning = false;
-		synchronized (workAvailable) {
-			workAvailable.notifyAll();
+	private void submitDrain() {
+		try {
+			executor.execute(drainTask);
+		} catch (RejectedExecutionException e) {
+			drainFinished();
+			if (workersRunning) throw e;
 		}
-		for (int i = 0; i < workers.length; i++) {
-			boolean joined = false;
-			while (!joined) {
-				try {
-					workers[i].join();
-					debug(workers[i].getName()+" has been stopped.");
-					joined = true;
-				} catch(InterruptedException e) {
-					e.printStackTrace();
-				}
+	}
+	
+	private void drainFinished() {
+		if (activeDrains.decrementAndGet() == 0 && !workersRunning) {
+			synchronized (drainMonitor) {
+				drainMonitor.notifyAll();
 			}
 		}
-		debug("Stopped.");
 	}
 	
-	private static class WorkerTask<T extends Chunk<T>> implements Runnable {
-		
-		ChunkManager<T> manager;
-		Job<T> myJob;
-		
-		public WorkerTask(ChunkManager<T> manager) {
-			this.manager = manager;
-			myJob = new Job<T>(manager);
+	/**
+	 * Does the most urgent queued jobs. Resubmits itself after JOBS_PER_DRAIN jobs, keeping its place in activeDrains.
+	 */
+	private void drain() {
+		List<T> job = new ArrayList<>();
+		int jobs = 0;
+		boolean resubmitted = false;
+		try {
+			while (workersRunning) {
+				Runnable task = tasks.poll();
+				if (task == null && !pollJob(job)) break;
+				try {
+					if (task != null) task.run();
+					else doJob(job);
+				} catch (Throwable failure) {
+					failJob(job, failure);
+				} finally {
+					job.clear();
+				}
+				if (++jobs == JOBS_PER_DRAIN) {
+					resubmitted = true;
+					submitDrain();
+					return;
+				}
+			}
+		} finally {
+			if (!resubmitted) drainFinished();
 		}
 		
-		public void run() {
-			while (manager.workersRunning) {
-			    doWork();
+		// Work queued after the last poll may have found no room for another drain task
+		if (workersRunning && hasWork()) signalWork();
+	}
+	
+	/**
+	 * Takes the next chunk that a worker should unload and moves it to UNLOADING, or else the next chunk 
+	 * to load and up to loader.getBatchSize()-1 other queued chunks in the same block, and moves them to LOADING.
+	 * @return false if there is no work
+	 */
+	private boolean pollJob(List<T> job) {
+		synchronized (queueLock) {
+			T chunk = unloadingQueue.poll();
+			if (chunk != null) {
+				chunk.unloadForced = false;
+				chunk.state.set(Chunk.UNLOADING);
+				job.add(chunk);
+				return true;
+			}
+			chunk = loadingQueue.poll();
+			if (chunk == null) return false;
+			job.add(chunk);
+			
+			int batchSize = loader.getBatchSize();
+			boolean overLimit = loadingQueue.size() >= maxQueuedLoads;
+			if (overLimit && shedPolicy == ShedPolicy.COALESCE) batchSize *= 4;
+			if (batchSize > 1) {
+				int side = Math.max(1, (int) Math.sqrt(batchSize));
+				int blockX = Math.floorDiv(chunk.chunkX, side);
+				int blockY = Math.floorDiv(chunk.chunkY, side);
+				for (int i = 0; i < loadingQueue.size() && job.size() < batchSize; i++) {
+					T queued = loadingQueue.get(i);
+					if (Math.floorDiv(queued.chunkX, side) == blockX && Math.floorDiv(queued.chunkY, side) == blockY) job.add(queued);
+				}
+				for (int i = 1; i < job.size(); i++) loadingQueue.remove(job.get(i));
+			}
+			
+			for (T loading : job) {
+				loading.loadCancelled = false;
+				loading.wantedAgain = false;
+				loading.degraded = overLimit && shedPolicy == ShedPolicy.DEGRADE;
+				loading.state.set(Chunk.LOADING);
 			}
+			return true;
 		}
-		
-		private static void debug(String msg) {
-			ChunkManager.debug(msg);
+	}
+	
+	private void doJob(List<T> job) {
+		if (job.get(0).state.get() == Chunk.UNLOADING) {
+			T chunk = job.get(0);
+			loadedChunks.remove(chunk);
+			degradedChunks.remove(chunk);
+			chunk.internalUnload();
+			loadedBytes.addAndGet(-chunk.accountedBytes);
+			chunk.accountedBytes = 0;
+			chunk.state.set(Chunk.UNLOADED);
+			debug(chunk+" unloaded.");
+			return;
 		}
 		
-		private void doWork() {
-			while (!getJob(myJob).isAssigned()) {
+		// Added before the state becomes LOADED, so an unload can never run before the add
+		loadedChunks.addAll(job);
+		if (job.size() == 1) job.get(0).load();
+		else loader.loadBatch(job);
+		for (T chunk : job) finishLoad(chunk);
+	}
+	
+	/**
+	 * Returns every chunk of a job (none for a task) that threw to UNLOADED, calling unload() on unfinished loads to clean up,
+	 * then hands the failure to the thread's uncaught exception handler. The worker carries on with the next job.
+	 */
+	private void failJob(List<T> job, Throwable failure) {
+		failedJobs.increment();
+		for (T chunk : job) {
+			int current = chunk.state.get();
+			if (current != Chunk.LOADING && current != Chunk.UNLOADING) continue;
+			if (current == Chunk.LOADING) {
 				try {
-					debug(Thread.currentThread().getName()+" is waiting for work.");
-					synchronized (manager.workAvailable) {
-						manager.workAvailable.wait();
-					}
-				} catch(InterruptedException e) {
-					e.printStackTrace();
+					chunk.internalUnload();
+				} catch (Throwable cleanupFailure) {
+					failure.addSuppressed(cleanupFailure);
 				}
-				if (!manager.workersRunning) return;
 			}
-			myJob.complete();
+			loadedChunks.remove(chunk);
+			degradedChunks.remove(chunk);
+			loadedBytes.addAndGet(-chunk.accountedBytes);
+			chunk.accountedBytes = 0;
+			synchronized (queueLock) {
+				chunk.wantedAgain = false;
+				chunk.state.set(Chunk.UNLOADED);
+			}
+			debug(chunk+" failed.");
 		}
-
-		private Job<T> getJob(Job<T> job) {			
-			// Look for unloading jobs first
-			debug(Thread.currentThread().getName()+" locking unloading queue");
-			acquire("unloadingQueue", manager.unloadingQueueLock);
-			job.chunk = manager.unloadingQueue.poll();
-			if (job.chunk != null) {
-				job.type = Job.Type.UNLOAD;
-				release("unloadingQueue", manager.unloadingQueueLock);
-				debug(Thread.currentThread().getName()+" unlocked unloading queue");
-				return job;
+		Thread thread = Thread.currentThread();
+		thread.getUncaughtExceptionHandler().uncaughtException(thread, failure);
+	}
+	
+	private void finishLoad(T chunk) {
+		if (chunk.internalFinishLoad()) {
+			long bytes = chunk.getMemoryEstimate();
+			boolean loaded = false;
+			
+			// A cancellation can only be missed if it is checked outside the lock that cancelLoad() uses
+			synchronized (queueLock) {
+				if (!chunk.loadCancelled) {
+					chunk.accountedBytes = bytes;
+					loaded = chunk.state.compareAndSet(Chunk.LOADING, Chunk.LOADED);
+					if (loaded) {
+						loadedBytes.addAndGet(bytes);
+						if (chunk.degraded) degradedChunks.add(chunk);
+					} else {
+						chunk.accountedBytes = 0;
+					}
+				}
+			}
+			if (loaded) {
+				debug(chunk+" loaded.");
+				if (chunk.degraded) reportShed(chunk, ShedReason.DEGRADED);
+				return;
 			}
-			release("unloadingQueue", manager.unloadingQueueLock);
-			debug(Thread.currentThread().getName()+" unlocked unloading queue");
 			
-			// Look for loading jobs
-			debug(Thread.currentThread().getName()+" locking loading queue");
-			acquire("loadingQueue", manager.loadingQueueLock);
-			job.chunk = manager.loadingQueue.poll();
-			if (job.chunk != null) {
-				job.type = Job.Type.LOAD;
-				release("loadingQueue", manager.loadingQueueLock);
-				debug(Thread.currentThread().getName()+" unlocked loading queue");
-				return job;
+			// Cancelled after the chunk had finished loading
+			chunk.internalUnload();
+		}
+		
+		loadedChunks.remove(chunk);
+		cancelledLoads.increment();
+		synchronized (queueLock) {
+			if (!chunk.wantedAgain) {
+				chunk.state.set(Chunk.UNLOADED);
+				debug(chunk+" load cancelled.");
+				return;
 			}
-			release("loadingQueue", manager.loadingQueueLock);
-			debug(Thread.currentThread().getName()+" unlocked loading queue");
+			// Touched again while it was loading or being cleaned up
+			chunk.wantedAgain = false;
+			chunk.state.set(Chunk.QUEUED_LOAD);
+			loadingQueue.offer(chunk, getLoadPriority(chunk));
+		}
+		signalWork();
+	}
 
-			job.type = Job.Type.UNASSIGNED;
-			
-			return job;
+	private static void debug(String string) {
+		//System.out.println("[ChunkManager] "+string);
+	}
+
+	private void startWorkers() {
+		debug("Starting workers...");
+		if (ownsExecutor) executor = createWorkerPool(maxConcurrency);
+		workersRunning = true;
+		if (hasWork()) {
+			for (int i = 0; i < maxConcurrency; i++) signalWork();
 		}
+		debug("Started.");
 	}
-	
+
 	/**
-	 * Job class that represents a chunk related job returned 
-	 * by the WorkerTask getJob method and used by Tasks.
+	 * Waits for running jobs to finish. Queued jobs stay queued until the next start().
 	 */
-	private static class Job<T extends Chunk<T>> {
-		ChunkManager<T> manager;
-		
-		enum Type { UNASSIGNED, LOAD, UNLOAD };
-		Type type = Type.UNASSIGNED;
-		T chunk = null;
-		
-		public Job(ChunkManager<T> manager) {
-			this.manager = manager;
-		}
-		
-		public boolean isAssigned() {
-			return type != Type.UNASSIGNED;
+	private void stopWorkers() {
+		debug("Stopping workers...");
+		workersRunning = false;
+		boolean interrupted = false;
+		synchronized (drainMonitor) {
+			while (activeDrains.get() > 0) {
+				try {
+					drainMonitor.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
 		}
-		
-		private static void debug(String msg) {
-			ChunkManager.debug(msg);
+		if (ownsExecutor && executor != null) {
+			((ExecutorService) executor).shutdown();
+			executor = null;
 		}
-		
-		public void complete() {
-			if (this.chunk == null) {
-				debug("Error: Job does not refer to a chunk");
-				return;
-			}
-			
-			acquire(chunk.toString(), chunk.lock);
-			debug(Thread.currentThread().getName()+" locking "+chunk);
-			
-			// Do job
-			switch (type) {
-				case LOAD:
-					chunk.internalLoad();
-					manager.addLoaded(chunk);
-					debug(chunk+" loaded.");
-					break;
-				case UNLOAD:
-					chunk.internalUnload();
-					debug(chunk+" unloaded.");
-					break;
-				default: 
-					debug("Error: Job type is UNASSIGNED");
-					debug(Thread.currentThread().getName()+" unlocking "+chunk);
-					release(chunk.toString(), chunk.lock);
-					return;
-			}
+		if (interrupted) Thread.currentThread().interrupt();
+		debug("Stopped.");
+	}
 
-			debug(Thread.currentThread().getName()+" unlocking "+chunk);
-			release(chunk.toString(), chunk.lock);
-			
-			// Clear job info
-			this.type = Type.UNASSIGNED;
-			this.chunk = null;
-		}
+	private static ExecutorService createWorkerPool(final int numWorkers) {
+		ThreadFactory factory = new ThreadFactory() {
+			final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task);
+				thread.setName("ChunkManager worker thread #"+count.incrementAndGet()+"/"+numWorkers);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		};
+		return new ThreadPoolExecutor(numWorkers, numWorkers, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), factory);
 	}
-	
+
 }
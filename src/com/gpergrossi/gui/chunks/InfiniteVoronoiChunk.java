@@ -1,8 +1,11 @@
 package com.gpergrossi.gui.chunks;
 
 import java.awt.Color;
+import java.awt.Font;
 import java.awt.Graphics2D;
 import java.awt.Shape;
+import java.awt.font.FontRenderContext;
+import java.awt.geom.Rectangle2D;
 import java.util.Random;
 
 import com.gpergrossi.util.geom.shapes.Rect;
@@ -10,6 +13,9 @@ import com.gpergrossi.voronoi.infinite.InfiniteCell;
 
 public class InfiniteVoronoiChunk extends View2DChunk<InfiniteVoronoiChunk> {
 	
+	private static final Font LABEL_FONT = new Font(Font.DIALOG, Font.PLAIN, 12);
+	private static final FontRenderContext LABEL_CONTEXT = new FontRenderContext(null, false, false);
+	
 	Rect bounds;
 	InfiniteCell cell;
 	
@@ -31,17 +37,58 @@ public class InfiniteVoronoiChunk extends View2DChunk<InfiniteVoronoiChunk> {
 
 	@Override
 	public void load() {
-		InfiniteVoronoiChunkLoader loader = getChunkLoader();
+		load(getChunkLoader().voronoi.getCell(chunkX, chunkY));
+	}
+	
+	/**
+	 * Loads using a cell that has already been reserved for this chunk
+	 */
+	void load(InfiniteCell cell) {
 		int chunkSize = (int) loader.getChunkSize();
 		bounds = new Rect(chunkX * chunkSize, chunkY * chunkSize, chunkSize, chunkSize);
-		cell = loader.voronoi.getCell(chunkX, chunkY);
+		this.cell = cell;
+		if (isLoadCancelled()) return;
 		shape = cell.getPolygon().asAWTShape();
 		color = randomColor(new Random(cell.getSeed()));
 	}
 
 	@Override
 	public void unload() {
-		cell.release();
+		if (cell != null) cell.release();
+		cell = null;
+		shape = null;
+	}
+	
+	/**
+	 * The cell plus the AWT shape's copy of its vertices
+	 */
+	@Override
+	public long getMemoryEstimate() {
+		InfiniteCell cell = this.cell;
+		if (cell == null) return super.getMemoryEstimate();
+		return super.getMemoryEstimate() + cell.getMemoryEstimate() + 64 + cell.getPolygon().getNumVertices() * 24L;
+	}
+	
+	/**
+	 * The polygon's bounding box, plus room for the site marker and the label measured with the font draw() uses
+	 */
+	@Override
+	protected Rectangle2D getTileBounds() {
+		Shape shape = this.shape;
+		InfiniteCell cell = this.cell;
+		if (shape == null || cell == null) return null;
+		int cx = (int) cell.getSite().x();
+		int cy = (int) cell.getSite().y();
+		
+		Rectangle2D bounds = shape.getBounds2D();
+		bounds.add(new Rectangle2D.Double(cx - 3, cy - 3, 6, 6));
+		Rectangle2D label = LABEL_FONT.getStringBounds(getLabel(), LABEL_CONTEXT);
+		bounds.add(new Rectangle2D.Double(cx + label.getMinX() - 1, cy + label.getMinY() - 1, label.getWidth() + 2, label.getHeight() + 2));
+		return bounds;
+	}
+	
+	private String getLabel() {
+		return chunkX+", "+chunkY;
 	}
 	
 	@Override
@@ -57,7 +104,8 @@ public class InfiniteVoronoiChunk extends View2DChunk<InfiniteVoronoiChunk> {
 		g.drawLine(cx-2, cy+2, cx+2, cy-2);
 		
 		g.setColor(Color.WHITE);
-		g.drawString(chunkX+", "+chunkY, (int) cell.site.x(), (int) cell.site.y());
+		g.setFont(LABEL_FONT);
+		g.drawString(getLabel(), cx, cy);
 		
 //		int minX = (int) bounds.minX();
 //		int minY = (int) bounds.minY();
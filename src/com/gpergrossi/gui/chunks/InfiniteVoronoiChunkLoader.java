@@ -1,12 +1,16 @@
 package com.gpergrossi.gui.chunks;
 
+import java.util.List;
 import java.util.Random;
 
+import com.gpergrossi.util.geom.ranges.Int2DRange;
+import com.gpergrossi.voronoi.infinite.InfiniteCell;
 import com.gpergrossi.voronoi.infinite.InfiniteVoronoi;
 
 public class InfiniteVoronoiChunkLoader extends View2DChunkLoader<InfiniteVoronoiChunk> {
 	
 	public static final int chunkSize = 16*16;
+	public static final int batchSize = 4*4;
 	public InfiniteVoronoi voronoi;
 	
 	public InfiniteVoronoiChunkLoader() {
@@ -17,5 +21,38 @@ public class InfiniteVoronoiChunkLoader extends View2DChunkLoader<InfiniteVorono
 		super(chunkSize, InfiniteVoronoiChunk::constructor);
 		this.voronoi = new InfiniteVoronoi(chunkSize, seed);
 	}
+	
+	@Override
+	public int getBatchSize() {
+		return batchSize;
+	}
+	
+	/**
+	 * Builds the cells of the whole batch at once, each chunk has one cell at its own chunk coordinates
+	 */
+	@Override
+	public void loadBatch(List<InfiniteVoronoiChunk> chunks) {
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+		for (InfiniteVoronoiChunk chunk : chunks) {
+			minX = Math.min(minX, chunk.chunkX);
+			minY = Math.min(minY, chunk.chunkY);
+			maxX = Math.max(maxX, chunk.chunkX);
+			maxY = Math.max(maxY, chunk.chunkY);
+		}
+		
+		InfiniteCell[] cells = voronoi.getCellBlock(new Int2DRange(minX, minY, maxX, maxY));
+		int width = maxX - minX + 1;
+		for (InfiniteVoronoiChunk chunk : chunks) {
+			int index = (chunk.chunkY - minY) * width + (chunk.chunkX - minX);
+			chunk.load(cells[index]);
+			cells[index] = null;
+		}
+		
+		// Cells in the block that no chunk asked for
+		for (InfiniteCell cell : cells) {
+			if (cell != null) cell.release();
+		}
+	}
 
 }
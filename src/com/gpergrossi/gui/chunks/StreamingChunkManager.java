@@ -0,0 +1,277 @@
+package com.gpergrossi.gui.chunks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+import com.gpergrossi.util.geom.vectors.Int2D;
+
+/**
+ * Keeps chunks loaded for any number of observers, with no view or drawing involved, and is
+ * driven by calling tick(). Each Observer is interested in the chunks within a radius of its
+ * position. A chunk's load priority is its distance to the nearest observer, so every observer's
+ * closest chunks load first. A ChunkHandle keeps a single chunk loaded for as long as it is held.
+ * Handles are reference counted per chunk. At most maxLoaded chunks are kept: pinned chunks
+ * always, then the chunks nearest to any observer. Chunks over the limit are unloaded on the
+ * next tick.
+ * <br/><br/>
+ * Observers and handles can be used from any thread. tick() must always be called from the same
+ * thread, the only one that calls loader.getChunk().
+ */
+public class StreamingChunkManager<T extends Chunk<T>> extends ChunkManager<T> {
+
+	private static final class Interest {
+		final int chunkX, chunkY, radius;
+
+		Interest(int chunkX, int chunkY, int radius) {
+			this.chunkX = chunkX;
+			this.chunkY = chunkY;
+			this.radius = radius;
+		}
+
+		boolean sameAs(Interest other) {
+			return chunkX == other.chunkX && chunkY == other.chunkY && radius == other.radius;
+		}
+	}
+
+	public final class Observer {
+		private volatile Interest interest;
+
+		private Observer(Interest interest) {
+			this.interest = interest;
+		}
+
+		/**
+		 * Moves this observer to the chunk containing the given world position
+		 */
+		public void moveTo(double x, double y) {
+			Int2D chunk = getChunkCoordinate(x, y);
+			interest = new Interest(chunk.x(), chunk.y(), interest.radius);
+		}
+
+		/**
+		 * @param radius - in chunks, chunks whose distance to the observer's chunk is at most radius are loaded
+		 */
+		public void setRadius(int radius) {
+			if (radius < 0) throw new IllegalArgumentException("radius cannot be negative");
+			Interest current = interest;
+			interest = new Interest(current.chunkX, current.chunkY, radius);
+		}
+
+		public int getChunkX() {
+			return interest.chunkX;
+		}
+
+		public int getChunkY() {
+			return interest.chunkY;
+		}
+
+		public int getRadius() {
+			return interest.radius;
+		}
+
+		/**
+		 * Stops loading chunks for this observer, its chunks are unloaded on a later tick unless others want them
+		 */
+		public void remove() {
+			observers.remove(this);
+		}
+	}
+
+	private static final class Pin<T> {
+		final int chunkX, chunkY;
+		int references;			// (Use lock on pins)
+		volatile T chunk;		// Set by the first tick after the pin is created
+
+		Pin(int chunkX, int chunkY) {
+			this.chunkX = chunkX;
+			this.chunkY = chunkY;
+		}
+	}
+
+	public final class ChunkHandle {
+		private final Pin<T> pin;
+		private boolean released;
+
+		private ChunkHandle(Pin<T> pin) {
+			this.pin = pin;
+		}
+
+		/**
+		 * @return the pinned chunk, or null until the next tick after this handle was acquired
+		 */
+		public T getChunk() {
+			return pin.chunk;
+		}
+
+		public boolean isLoaded() {
+			T chunk = pin.chunk;
+			return chunk != null && chunk.isLoaded();
+		}
+
+		/**
+		 * Gives up this handle. The chunk may be unloaded once no handles or observers want it.
+		 */
+		public void release() {
+			synchronized (pins) {
+				if (released) throw new IllegalStateException("ChunkHandle already released");
+				released = true;
+				if (--pin.references == 0) pins.remove(Int2D.pack(pin.chunkX, pin.chunkY));
+			}
+		}
+	}
+
+	private final List<Observer> observers = new CopyOnWriteArrayList<>();
+	private final Map<Long, Pin<T>> pins = new HashMap<>();
+
+	private volatile Interest[] interests = new Interest[0];	// Snapshot taken by the last tick, read by workers for priorities
+	private boolean interestsChanged;
+
+	public StreamingChunkManager(ChunkLoader<T> loader, int numWorkers, int maxLoaded) {
+		super(loader, numWorkers, Math.min(maxLoaded, 1024));
+		setMaxLoaded(maxLoaded);
+	}
+
+	public StreamingChunkManager(ChunkLoader<T> loader, Executor executor, int maxConcurrency, int maxLoaded) {
+		super(loader, executor, maxConcurrency, Math.min(maxLoaded, 1024));
+		setMaxLoaded(maxLoaded);
+	}
+
+	/**
+	 * @param x - world position
+	 * @param y - world position
+	 * @param radius - in chunks, see Observer.setRadius()
+	 */
+	public Observer addObserver(double x, double y, int radius) {
+		if (radius < 0) throw new IllegalArgumentException("radius cannot be negative");
+		Int2D chunk = getChunkCoordinate(x, y);
+		Observer observer = new Observer(new Interest(chunk.x(), chunk.y(), radius));
+		observers.add(observer);
+		return observer;
+	}
+
+	public int getNumObservers() {
+		return observers.size();
+	}
+
+	/**
+	 * Keeps the chunk at the given chunk coordinates loaded until the returned handle is released.
+	 * Pinned chunks count towards maxLoaded and are kept before any observer's chunks.
+	 */
+	public ChunkHandle acquire(int chunkX, int chunkY) {
+		synchronized (pins) {
+			long key = Int2D.pack(chunkX, chunkY);
+			Pin<T> pin = pins.get(key);
+			if (pin == null) {
+				pin = new Pin<>(chunkX, chunkY);
+				pins.put(key, pin);
+			}
+			pin.references++;
+			return new ChunkHandle(pin);
+		}
+	}
+
+	/**
+	 * Loads chunks that observers and handles want and unloads the rest
+	 */
+	public void tick() {
+		update();
+	}
+
+	@Override
+	public void touchAll() {
+		// Iterating a CopyOnWriteArrayList sees one snapshot of it
+		List<Interest> snapshot = new ArrayList<>();
+		for (Observer observer : observers) snapshot.add(observer.interest);
+		Interest[] current = snapshot.toArray(new Interest[snapshot.size()]);
+		interestsChanged = !sameInterests(interests, current);
+		interests = current;
+
+		Set<Long> seen = new HashSet<>();
+		List<T> pinned = new ArrayList<>();
+		synchronized (pins) {
+			for (Map.Entry<Long, Pin<T>> entry : pins.entrySet()) {
+				Pin<T> pin = entry.getValue();
+				if (pin.chunk == null) pin.chunk = loader.getChunk(pin.chunkX, pin.chunkY);
+				pinned.add(pin.chunk);
+				seen.add(entry.getKey());
+			}
+		}
+		for (T chunk : pinned) touch(chunk);
+
+		List<T> wanted = new ArrayList<>();
+		for (Interest interest : current) {
+			int r = interest.radius;
+			for (int dy = -r; dy <= r; dy++) {
+				for (int dx = -r; dx <= r; dx++) {
+					if (dx*dx + dy*dy > r*r) continue;
+					int x = interest.chunkX + dx, y = interest.chunkY + dy;
+					if (seen.add(Int2D.pack(x, y))) wanted.add(loader.getChunk(x, y));
+				}
+			}
+		}
+
+		// Keep the nearest chunks when there are too many, pinned chunks were touched above
+		int room = Math.max(0, getMaxLoaded() - pinned.size());
+		if (wanted.size() > room) {
+			wanted.sort((a, b) -> Double.compare(distanceSq(a), distanceSq(b)));
+			wanted = wanted.subList(0, room);
+		}
+		for (T chunk : wanted) touch(chunk);
+	}
+
+	/**
+	 * Besides chunks older than the max chunk age, unloads every chunk not touched this tick while over maxLoaded
+	 */
+	@Override
+	protected void unloadOldChunks() {
+		long maxAge = loader.getMaxChunkAge();
+		boolean overLimit = loadedChunks.size() > getMaxLoaded();
+		for (T chunk : loadedChunks) {
+			long age = currentViewIteration - chunk.lastSeen;
+			if (age > maxAge || (overLimit && age > 0)) queueUnload(chunk);
+		}
+	}
+
+	/**
+	 * Re-keys the queues whenever an observer has moved or changed its radius
+	 */
+	@Override
+	protected void updatePriorities() {
+		if (!interestsChanged) return;
+		synchronized (queueLock) {
+			loadingQueue.rekeyAll(this::getLoadPriority);
+			unloadingQueue.rekeyAll(this::getUnloadPriority);
+		}
+	}
+
+	/**
+	 * Distance squared from the chunk to the nearest observer, in chunks, or 0 if there are no observers
+	 */
+	@Override
+	protected double distanceSq(T chunk) {
+		Interest[] current = interests;
+		if (current.length == 0) return 0;
+		double nearest = Double.POSITIVE_INFINITY;
+		for (Interest interest : current) {
+			double dx = chunk.chunkX - interest.chunkX;
+			double dy = chunk.chunkY - interest.chunkY;
+			nearest = Math.min(nearest, dx*dx + dy*dy);
+		}
+		return nearest;
+	}
+
+	private static boolean sameInterests(Interest[] a, Interest[] b) {
+		if (a.length != b.length) return false;
+		for (int i = 0; i < a.length; i++) {
+			if (!a[i].sameAs(b[i])) return false;
+		}
+		return true;
+	}
+
+}
@@ -1,13 +1,162 @@
 package com.gpergrossi.gui.chunks;
 
 import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * A chunk that draws itself in world coordinates. Chunks that report getTileBounds() are drawn
+ * once into a cached image tile by the worker that loaded them. The tile is then drawn instead of
+ * calling draw() on every frame. A tile is replaced as a whole, so drawing never waits for a
+ * worker. It is rendered again by a worker task when invalidateTile() is called, and once the 
+ * manager's tile scale is more than MAX_SCALE_RATIO away from the tile's. The old tile is drawn
+ * until the new one is ready. Only chunks without a tile have draw() called while drawing, and
+ * then under tileLock so that a worker cannot unload them in the middle of it.
+ */
 public abstract class View2DChunk<T extends Chunk<T>> extends Chunk<T> {
 
+	private static final long MAX_TILE_PIXELS = 2048 * 2048;
+	static final double MAX_SCALE_RATIO = 2.0;
+
+	private static final class Tile {
+		final BufferedImage image;
+		final AffineTransform toWorld;
+
+		Tile(BufferedImage image, AffineTransform toWorld) {
+			this.image = image;
+			this.toWorld = toWorld;
+		}
+	}
+
+	private final Object tileLock = new Object();		// Held by unloads, queued renders and draws without a tile
+	private final AtomicBoolean renderQueued = new AtomicBoolean();
+	private volatile Tile tile;
+	private volatile double renderedScale;	// Tile scale of the last renderTile(), even if it made no tile
+
 	public View2DChunk(ChunkManager<T> manager, int chunkX, int chunkY) {
 		super(manager, chunkX, chunkY);
 	}
 
 	public abstract void draw(Graphics2D g);
-	
+
+	/**
+	 * @return the world bounds of everything draw() paints, or null to call draw() on every frame instead of caching a tile
+	 */
+	protected Rectangle2D getTileBounds() {
+		return null;
+	}
+
+	/**
+	 * Call after changing anything draw() depends on while the chunk is loaded.
+	 * The tile is rendered again by a worker and then replaces the old one.
+	 */
+	protected void invalidateTile() {
+		if (isLoaded()) queueRender();
+	}
+
+	/**
+	 * Queues a worker task to render the tile again, unless one is already queued.
+	 * The task does nothing if the chunk is no longer loaded by the time it runs.
+	 */
+	void queueRender() {
+		if (!renderQueued.compareAndSet(false, true)) return;
+		manager.queueTask(() -> {
+			synchronized (tileLock) {
+				renderQueued.set(false);
+				if (isLoaded()) renderTile();
+			}
+		});
+	}
+
+	@Override
+	protected void afterLoad() {
+		renderTile();
+	}
+
+	@Override
+	protected void afterUnload() {
+		tile = null;
+	}
+
+	@Override
+	protected void internalUnload() {
+		synchronized (tileLock) {
+			super.internalUnload();
+		}
+	}
+
+	/**
+	 * Includes the cached tile
+	 */
+	@Override
+	public long getMemoryEstimate() {
+		Tile current = tile;
+		if (current == null) return 0;
+		return (long) current.image.getWidth() * current.image.getHeight() * 4;
+	}
+
+	/**
+	 * Draws the cached tile, even if it is stale. Without a tile (tiles are disabled, the chunk has 
+	 * no tile bounds or its first tile is still queued) draw() is called if the chunk is still loaded.
+	 */
+	void drawTile(Graphics2D g) {
+		Tile current = tile;
+		if (current != null) {
+			g.drawImage(current.image, current.toWorld, null);
+			return;
+		}
+		synchronized (tileLock) {
+			if (isLoaded()) draw(g);
+		}
+	}
+
+	/**
+	 * @return true if the tile was rendered at a scale too far from the manager's current tile scale
+	 */
+	boolean isTileStale() {
+		return !similarScales(renderedScale, getManagerTileScale());
+	}
+
+	private static boolean similarScales(double a, double b) {
+		if (a <= 0 || b <= 0) return a == b;
+		double ratio = a / b;
+		return ratio <= MAX_SCALE_RATIO && ratio >= 1.0 / MAX_SCALE_RATIO;
+	}
+
+	private double getManagerTileScale() {
+		return (manager instanceof View2DChunkManager) ? ((View2DChunkManager<?>) manager).getTileScale() : 0;
+	}
+
+	private void renderTile() {
+		double scale = getManagerTileScale();
+		renderedScale = scale;
+		Rectangle2D bounds = getTileBounds();
+		if (scale <= 0 || bounds == null || bounds.isEmpty()) {
+			tile = null;
+			return;
+		}
+
+		// Deep zooms get a coarser tile rather than none
+		double area = bounds.getWidth() * bounds.getHeight();
+		if (area * scale * scale > MAX_TILE_PIXELS) scale = Math.sqrt(MAX_TILE_PIXELS / area);
+		int width = Math.max(1, (int) Math.ceil(bounds.getWidth() * scale));
+		int height = Math.max(1, (int) Math.ceil(bounds.getHeight() * scale));
+
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+		Graphics2D g = image.createGraphics();
+		try {
+			g.scale(scale, scale);
+			g.translate(-bounds.getMinX(), -bounds.getMinY());
+			draw(g);
+		} finally {
+			g.dispose();
+		}
+
+		AffineTransform toWorld = AffineTransform.getTranslateInstance(bounds.getMinX(), bounds.getMinY());
+		toWorld.scale(1.0 / scale, 1.0 / scale);
+		tile = new Tile(image, toWorld);
+	}
+
 }
@@ -1,57 +1,273 @@
 package com.gpergrossi.gui.chunks;
 
 import java.awt.Graphics2D;
-import java.awt.Point;
 import java.awt.geom.Rectangle2D;
-import java.util.Iterator;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 
+import com.gpergrossi.util.geom.ranges.Int2DRange;
+import com.gpergrossi.util.geom.vectors.Int2D;
+
+/**
+ * Keeps the chunks covering a view rectangle (plus one chunk of margin) loaded. Only chunks
+ * entering or leaving the rectangle are processed on each update: entering chunks are touched,
+ * and leaving chunks have their pending or in-progress loads cancelled and are grouped into a band stamped with
+ * the iteration they left on. When a band becomes older than the loader's max chunk age, its
+ * chunks that are still out of view are unloaded. The cost of an update is proportional to the
+ * edge of the view rather than its area.
+ * <br/><br/>
+ * With a prefetch lookahead set, the pan and zoom velocity of the view is smoothed over successive
+ * updates and the view is extrapolated that many updates ahead. Chunks between the view and the
+ * predicted view are queued for loading behind every visible chunk. When the prediction changes,
+ * chunks that are no longer predicted leave like any other chunk. Once the view stops moving, the
+ * prediction shrinks back to the view, so prefetching does not grow the steady state working set.
+ * <br/><br/>
+ * Chunks with tile bounds are rendered into image tiles at tileScale pixels per world unit when
+ * they load, and draw() blits those tiles (see View2DChunk). Tiles left behind by a tile scale
+ * change are queued to be rendered again by the workers on each update, and drawn stretched until then.
+ */
 public class View2DChunkManager<T extends View2DChunk<T>> extends ChunkManager<T> {
-	
+
+	private static final class Band<T> {
+		final long departed;
+		final List<T> chunks = new ArrayList<>();
+
+		Band(long departed) {
+			this.departed = departed;
+		}
+	}
+
+	private static final double PREFETCH_SMOOTHING = 0.3;	// Weight of the newest view movement in the velocity average
+	private static final int MAX_PREFETCH_FACTOR = 4;		// Prefetch is skipped if the predicted area is this many times the view
+	private static final double PREFETCH_PRIORITY = 1e12;	// Added to the load priority of chunks that are predicted but not visible
+
 	Rectangle2D view;
-	
+	volatile Int2DRange viewChunks;				// Chunks touched by the previous touchAll()
+	Int2DRange wantedChunks;					// viewChunks and any prefetched chunks around them
+	final Deque<Band<T>> departures;			// Oldest first
+
+	private volatile double tileScale = 1.0;
+	private int prefetchLookahead;
+	private boolean hasLastView;
+	private double lastCenterX, lastCenterY, lastWidth;
+	private double velocityX, velocityY, zoomVelocity;	// Per update, zoomVelocity is the log of the width ratio
+
 	public View2DChunkManager(ChunkLoader<T> loader) {
-		super(loader, 4, 40);
+		this(loader, 4, 40);
 	}
-	
+
 	public View2DChunkManager(ChunkLoader<T> loader, int numWorkers) {
-		super(loader, numWorkers, 40);
+		this(loader, numWorkers, 40);
 	}
-	
+
 	public View2DChunkManager(ChunkLoader<T> loader, int numWorkers, int initialQueueSize) {
 		super(loader, numWorkers, initialQueueSize);
+		this.departures = new ArrayDeque<>();
+	}
+
+	public View2DChunkManager(ChunkLoader<T> loader, Executor executor, int maxConcurrency) {
+		this(loader, executor, maxConcurrency, 40);
+	}
+
+	public View2DChunkManager(ChunkLoader<T> loader, Executor executor, int maxConcurrency, int initialQueueSize) {
+		super(loader, executor, maxConcurrency, initialQueueSize);
+		this.departures = new ArrayDeque<>();
 	}
-	
+
 	public void setView(Rectangle2D view) {
 		this.view = view;
 	}
-	
+
+	/**
+	 * @param updates - how many updates ahead to predict the view for prefetching, 0 disables prefetching
+	 */
+	public void setPrefetchLookahead(int updates) {
+		if (updates < 0) throw new IllegalArgumentException("lookahead cannot be negative");
+		this.prefetchLookahead = updates;
+	}
+
+	public int getPrefetchLookahead() {
+		return prefetchLookahead;
+	}
+
+	/**
+	 * @param pixelsPerUnit - resolution of tiles, 0 disables tiles. Can be set to the view's zoom on every frame,
+	 * tiles are only rendered again once it is more than a factor of 2 away from the scale they were rendered at.
+	 */
+	public void setTileScale(double pixelsPerUnit) {
+		if (pixelsPerUnit < 0) throw new IllegalArgumentException("tile scale cannot be negative");
+		this.tileScale = pixelsPerUnit;
+	}
+
+	public double getTileScale() {
+		return tileScale;
+	}
+
+	/**
+	 * Also queues renders for tiles left behind by a tile scale change
+	 */
+	@Override
+	public void update() {
+		super.update();
+		for (T chunk : loadedChunks) {
+			if (chunk.isLoaded() && chunk.isTileStale()) chunk.queueRender();
+		}
+	}
+
 	public void touchAll() {
-		Point upperLeft = getChunkCoordinate(view.getMinX(), view.getMinY());
-		Point lowerRight = getChunkCoordinate(view.getMaxX(), view.getMaxY());
-		int minX = upperLeft.x-1, minY = upperLeft.y-1;
-		int maxX = lowerRight.x+1, maxY = lowerRight.y+1;
-		
+		Int2D upperLeft = getChunkCoordinate(view.getMinX(), view.getMinY());
+		Int2D lowerRight = getChunkCoordinate(view.getMaxX(), view.getMaxY());
+		int minX = upperLeft.x()-1, minY = upperLeft.y()-1;
+		int maxX = lowerRight.x()+1, maxY = lowerRight.y()+1;
+
 		// For priority evaluation
 		int centerX = (minX + maxX) / 2;
 		int centerY = (minY + maxY) / 2;
-		center = new Point(centerX, centerY);
-		
-		// Load new chunks / update lastSeen
-		for (int x = minX; x <= maxX; x++) {
-			for (int y = minY; y <= maxY; y++) {
-				T chunk = loader.getChunk(x, y);
-				touch(chunk);
+		center = new Int2D(centerX, centerY);
+
+		Int2DRange previous = viewChunks;
+		Int2DRange current = new Int2DRange(minX, minY, maxX, maxY);
+		Int2DRange previousWanted = wantedChunks;
+		Int2DRange wanted = predictWanted(current);
+		if (sameRange(previous, current) && sameRange(previousWanted, wanted)) return;
+		viewChunks = current;
+		wantedChunks = wanted;
+
+		// Chunks no longer wanted were last seen on the previous iteration
+		if (previousWanted != null) {
+			Band<T> band = new Band<>(currentViewIteration - 1);
+			forEachOutside(previousWanted, wanted, chunk -> {
+				chunk.lastSeen = band.departed;
+				cancelLoad(chunk);
+				band.chunks.add(chunk);
+			});
+			if (!band.chunks.isEmpty()) departures.addLast(band);
+		}
+
+		// Load new chunks
+		forEachOutside(current, previous, this::touch);
+
+		// Prefetch newly predicted chunks, they are only touched once they become visible
+		forEachOutside(wanted, previousWanted, chunk -> {
+			if (!current.contains(chunk.chunkX, chunk.chunkY)) queueLoad(chunk);
+		});
+	}
+
+	/**
+	 * Updates the view velocity and returns the range covering both the view chunks and the predicted view
+	 */
+	private Int2DRange predictWanted(Int2DRange current) {
+		double centerX = view.getCenterX(), centerY = view.getCenterY();
+		double width = view.getWidth(), height = view.getHeight();
+		if (hasLastView && width > 0 && lastWidth > 0) {
+			velocityX += PREFETCH_SMOOTHING * ((centerX - lastCenterX) - velocityX);
+			velocityY += PREFETCH_SMOOTHING * ((centerY - lastCenterY) - velocityY);
+			zoomVelocity += PREFETCH_SMOOTHING * (Math.log(width / lastWidth) - zoomVelocity);
+		}
+		hasLastView = true;
+		lastCenterX = centerX;
+		lastCenterY = centerY;
+		lastWidth = width;
+
+		if (prefetchLookahead == 0) return current;
+		double scale = Math.exp(zoomVelocity * prefetchLookahead);
+		double predictedX = centerX + velocityX * prefetchLookahead;
+		double predictedY = centerY + velocityY * prefetchLookahead;
+		double halfWidth = width * scale / 2, halfHeight = height * scale / 2;
+		Int2D upperLeft = getChunkCoordinate(predictedX - halfWidth, predictedY - halfHeight);
+		Int2D lowerRight = getChunkCoordinate(predictedX + halfWidth, predictedY + halfHeight);
+
+		// Too far ahead or zooming out too fast to be worth guessing
+		long predictedWidth = Math.max(current.maxX, lowerRight.x()+1) - (long) Math.min(current.minX, upperLeft.x()-1) + 1;
+		long predictedHeight = Math.max(current.maxY, lowerRight.y()+1) - (long) Math.min(current.minY, upperLeft.y()-1) + 1;
+		if (predictedWidth * predictedHeight > (long) MAX_PREFETCH_FACTOR * current.size()) return current;
+
+		return new Int2DRange(Math.min(current.minX, upperLeft.x()-1), Math.min(current.minY, upperLeft.y()-1), 
+				Math.max(current.maxX, lowerRight.x()+1), Math.max(current.maxY, lowerRight.y()+1));
+	}
+
+	private static boolean sameRange(Int2DRange a, Int2DRange b) {
+		if (a == null || b == null) return a == b;
+		return a.minX == b.minX && a.minY == b.minY && a.maxX == b.maxX && a.maxY == b.maxY;
+	}
+
+	/**
+	 * Prefetched chunks load after every visible chunk
+	 */
+	@Override
+	protected double getLoadPriority(T chunk) {
+		Int2DRange visible = viewChunks;
+		double priority = distanceSq(chunk);
+		if (visible != null && !visible.contains(chunk.chunkX, chunk.chunkY)) priority += PREFETCH_PRIORITY;
+		return priority;
+	}
+
+	/**
+	 * Unloads the chunks of departure bands older than the max chunk age, unless they have been seen or predicted since.
+	 * Chunks that were still loading when they left are kept for another max age.
+	 */
+	@Override
+	protected void unloadOldChunks() {
+		long maxAge = loader.getMaxChunkAge();
+		Band<T> retry = null;
+		while (!departures.isEmpty() && (currentViewIteration - departures.peekFirst().departed) > maxAge) {
+			Band<T> band = departures.pollFirst();
+			for (T chunk : band.chunks) {
+				if (chunk.lastSeen != band.departed || wantedChunks.contains(chunk.chunkX, chunk.chunkY)) continue;
+				if (chunk.state.get() == Chunk.LOADING) {
+					if (retry == null) retry = new Band<>(currentViewIteration);
+					chunk.lastSeen = retry.departed;
+					retry.chunks.add(chunk);
+					continue;
+				}
+				queueUnload(chunk);
+			}
+		}
+		if (retry != null) departures.addLast(retry);
+	}
+
+	/**
+	 * Chunks in view or predicted are wanted
+	 */
+	@Override
+	protected boolean isWanted(T chunk) {
+		return wantedChunks != null && wantedChunks.contains(chunk.chunkX, chunk.chunkY);
+	}
+
+	/**
+	 * Loads of departing chunks are cancelled as they leave the view or prediction, see touchAll()
+	 */
+	@Override
+	protected void cancelStaleLoads() {}
+
+	/**
+	 * Calls the consumer with every chunk in range that is not in excluded (or every chunk in range if excluded is null)
+	 */
+	private void forEachOutside(Int2DRange range, Int2DRange excluded, Consumer<T> consumer) {
+		for (int y = range.minY; y <= range.maxY; y++) {
+			if (excluded == null || y < excluded.minY || y > excluded.maxY) {
+				for (int x = range.minX; x <= range.maxX; x++) {
+					consumer.accept(loader.getChunk(x, y));
+				}
+				continue;
+			}
+			for (int x = range.minX; x <= Math.min(range.maxX, excluded.minX-1); x++) {
+				consumer.accept(loader.getChunk(x, y));
+			}
+			for (int x = Math.max(range.minX, excluded.maxX+1); x <= range.maxX; x++) {
+				consumer.accept(loader.getChunk(x, y));
 			}
 		}
 	}
-	
+
 	public void draw(Graphics2D g) {
-		acquire("loadedChunks", loadedChunksLock);
-		Iterator<T> iterator = loadedChunks.iterator();
-		while (iterator.hasNext()) {
-			iterator.next().draw(g);
+		for (T chunk : loadedChunks) {
+			if (chunk.isLoaded()) chunk.drawTile(g);
 		}
-		release("loadedChunks", loadedChunksLock);
 	}
-	
+
 }
@@ -0,0 +1,218 @@
+package com.gpergrossi.util.data;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongFunction;
+
+/**
+ * A thread safe open addressing hash map from primitive long keys to non-null values.
+ * Reads never lock or allocate. Writes are serialized on the map's monitor.
+ * <br/><br/>
+ * Once a slot has been given a key it keeps that key for the life of the table:
+ * removal leaves a tombstone that only the same key may revive. A reader that sees
+ * a slot's value therefore always sees the matching key. Tombstones are discarded
+ * when the table is rebuilt, which happens on a fresh table that is then published
+ * through a volatile field, so readers holding the old table see a consistent snapshot.
+ *
+ * @param <V> the type of value stored by this map
+ */
+public class ConcurrentLongHashMap<V> {
+
+	public static interface Consumer<V> {
+		public void accept(long key, V value);
+	}
+
+	private static final float LOAD_FACTOR = 0.5f;
+	private static final Object TOMBSTONE = new Object();
+
+	private static final class Table {
+		final long[] keys;
+		final AtomicReferenceArray<Object> values;	// null marks a never used slot
+		final int mask;
+		final int threshold;
+		int used;	// live entries + tombstones (Use lock on map)
+
+		Table(int capacity) {
+			this.keys = new long[capacity];
+			this.values = new AtomicReferenceArray<>(capacity);
+			this.mask = capacity - 1;
+			this.threshold = (int) (capacity * LOAD_FACTOR);
+		}
+	}
+
+	private volatile Table table;
+	private volatile int size;
+
+	public ConcurrentLongHashMap() {
+		this(16);
+	}
+
+	public ConcurrentLongHashMap(int initialCapacity) {
+		this.table = new Table(capacityFor(initialCapacity));
+	}
+
+	private static int capacityFor(int entries) {
+		return Math.max(4, Integer.highestOneBit(Math.max(1, (int) (entries / LOAD_FACTOR)) - 1) << 1);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the slot holding key in the given table, or ~(first unused slot) if there is none
+	 */
+	private static int slotFor(Table table, long key) {
+		int slot = LongHashMap.hash(key) & table.mask;
+		while (table.values.get(slot) != null) {
+			if (table.keys[slot] == key) return slot;
+			slot = (slot + 1) & table.mask;
+		}
+		return ~slot;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		final Table table = this.table;
+		final int slot = slotFor(table, key);
+		if (slot < 0) return null;
+		Object value = table.values.get(slot);
+		if (value == TOMBSTONE) return null;
+		return (V) value;
+	}
+
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * @return the previous value for the key, or null if there was none
+	 */
+	public synchronized V put(long key, V value) {
+		return insert(key, value, false);
+	}
+
+	/**
+	 * @return the current value for the key, or null if value was inserted
+	 */
+	public V putIfAbsent(long key, V value) {
+		V current = get(key);
+		if (current != null) return current;
+		synchronized (this) {
+			return insert(key, value, true);
+		}
+	}
+
+	/**
+	 * Returns the current value for the key, or inserts and returns the result of the mapping
+	 * function if there is none. The function may be called by several threads at once for the
+	 * same key, but only one result is ever inserted and returned to all of them.
+	 */
+	public V computeIfAbsent(long key, LongFunction<? extends V> mappingFunction) {
+		V current = get(key);
+		if (current != null) return current;
+		V created = mappingFunction.apply(key);
+		if (created == null) return null;
+		synchronized (this) {
+			current = insert(key, created, true);
+		}
+		return (current != null) ? current : created;
+	}
+
+	@SuppressWarnings("unchecked")
+	private V insert(long key, V value, boolean onlyIfAbsent) {
+		if (value == null) throw new IllegalArgumentException("ConcurrentLongHashMap does not allow null values");
+		Table table = this.table;
+		int slot = slotFor(table, key);
+		if (slot >= 0) {
+			Object previous = table.values.get(slot);
+			if (previous == TOMBSTONE) {
+				table.values.set(slot, value);
+				size++;
+				return null;
+			}
+			if (!onlyIfAbsent) table.values.set(slot, value);
+			return (V) previous;
+		}
+
+		if (table.used + 1 > table.threshold) {
+			table = rebuild(table, size + 1);
+			slot = slotFor(table, key);
+		}
+		slot = ~slot;
+		table.keys[slot] = key;
+		table.values.set(slot, value);	// publishes the key
+		table.used++;
+		size++;
+		return null;
+	}
+
+	/**
+	 * @return the removed value, or null if the key was not present
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized V remove(long key) {
+		final Table table = this.table;
+		final int slot = slotFor(table, key);
+		if (slot < 0) return null;
+		Object previous = table.values.get(slot);
+		if (previous == TOMBSTONE) return null;
+		table.values.set(slot, TOMBSTONE);
+		size--;
+		return (V) previous;
+	}
+
+	/**
+	 * Removes the key only if it is currently mapped to the given instance
+	 * @return true if the mapping was removed
+	 */
+	public boolean remove(long key, V value) {
+		if (get(key) != value) return false;
+		synchronized (this) {
+			final Table table = this.table;
+			final int slot = slotFor(table, key);
+			if (slot < 0 || table.values.get(slot) != value) return false;
+			table.values.set(slot, TOMBSTONE);
+			size--;
+			return true;
+		}
+	}
+
+	public synchronized void clear() {
+		this.table = new Table(table.keys.length);
+		this.size = 0;
+	}
+
+	/**
+	 * Visits a snapshot of the entries. Concurrent writes may or may not be seen.
+	 */
+	@SuppressWarnings("unchecked")
+	public void forEach(Consumer<? super V> consumer) {
+		final Table table = this.table;
+		for (int i = 0; i < table.keys.length; i++) {
+			Object value = table.values.get(i);
+			if (value != null && value != TOMBSTONE) consumer.accept(table.keys[i], (V) value);
+		}
+	}
+
+	/**
+	 * Copies the live entries into a new table sized for the given number of entries and publishes it
+	 */
+	private Table rebuild(Table old, int entries) {
+		Table table = new Table(Math.max(old.keys.length, capacityFor(entries * 2)));
+		for (int i = 0; i < old.keys.length; i++) {
+			Object value = old.values.get(i);
+			if (value == null || value == TOMBSTONE) continue;
+			int slot = ~slotFor(table, old.keys[i]);
+			table.keys[slot] = old.keys[i];
+			table.values.set(slot, value);
+			table.used++;
+		}
+		this.table = table;
+		return table;
+	}
+
+}
@@ -0,0 +1,149 @@
+package com.gpergrossi.util.data;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing hash map from primitive long keys to non-null values.
+ * Lookups do not allocate and there are no entry objects, so it is a good fit
+ * for maps keyed by packed coordinates (see Int2D.pack()). Not thread safe.
+ *
+ * @param <V> the type of value stored by this map
+ */
+public class LongHashMap<V> {
+
+	public static interface Consumer<V> {
+		public void accept(long key, V value);
+	}
+
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private long[] keys;
+	private Object[] values;	// null marks an empty slot
+	private int mask;
+	private int size;
+	private int resizeThreshold;
+
+	public LongHashMap() {
+		this(16);
+	}
+
+	public LongHashMap(int initialCapacity) {
+		allocate(Math.max(4, Integer.highestOneBit(Math.max(1, (int) (initialCapacity / LOAD_FACTOR)) - 1) << 1));
+	}
+
+	private void allocate(int capacity) {
+		this.keys = new long[capacity];
+		this.values = new Object[capacity];
+		this.mask = capacity - 1;
+		this.resizeThreshold = (int) (capacity * LOAD_FACTOR);
+	}
+
+	/**
+	 * Spreads the key bits so that nearby coordinates do not cluster
+	 */
+	static int hash(long key) {
+		key ^= (key >>> 33);
+		key *= 0xff51afd7ed558ccdL;
+		key ^= (key >>> 33);
+		return (int) key;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	private int slotFor(long key) {
+		int slot = hash(key) & mask;
+		while (values[slot] != null) {
+			if (keys[slot] == key) return slot;
+			slot = (slot + 1) & mask;
+		}
+		return ~slot;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int slot = slotFor(key);
+		if (slot < 0) return null;
+		return (V) values[slot];
+	}
+
+	public boolean containsKey(long key) {
+		return slotFor(key) >= 0;
+	}
+
+	/**
+	 * @return the previous value for the key, or null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null) throw new IllegalArgumentException("LongHashMap does not allow null values");
+		int slot = slotFor(key);
+		if (slot >= 0) {
+			V previous = (V) values[slot];
+			values[slot] = value;
+			return previous;
+		}
+
+		slot = ~slot;
+		keys[slot] = key;
+		values[slot] = value;
+		if (++size > resizeThreshold) rehash(keys.length << 1);
+		return null;
+	}
+
+	/**
+	 * @return the removed value, or null if the key was not present
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int slot = slotFor(key);
+		if (slot < 0) return null;
+		V previous = (V) values[slot];
+
+		// Shift following entries of the same probe run back into the gap
+		int gap = slot;
+		int next = (gap + 1) & mask;
+		while (values[next] != null) {
+			int home = hash(keys[next]) & mask;
+			if (((next - home) & mask) >= ((next - gap) & mask)) {
+				keys[gap] = keys[next];
+				values[gap] = values[next];
+				gap = next;
+			}
+			next = (next + 1) & mask;
+		}
+		values[gap] = null;
+		size--;
+		return previous;
+	}
+
+	public void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	public void forEach(Consumer<? super V> consumer) {
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null) consumer.accept(keys[i], (V) values[i]);
+		}
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(capacity);
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] == null) continue;
+			int slot = ~slotFor(oldKeys[i]);
+			keys[slot] = oldKeys[i];
+			values[slot] = oldValues[i];
+		}
+	}
+
+}
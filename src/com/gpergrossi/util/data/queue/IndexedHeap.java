@@ -0,0 +1,254 @@
+package com.gpergrossi.util.data.queue;
+
+import java.util.Arrays;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * A d-ary min heap of elements with double keys, in which every element remembers its own
+ * slot in the heap through a SlotAccessor. That makes contains() O(1) and remove() and
+ * update() O(log n), since no search is needed to find an element. An element can be in
+ * any number of heaps as long as each heap stores its slot in a different place.
+ * <br/><br/>
+ * Not thread safe.
+ *
+ * @param <T> the type of element stored by this heap
+ */
+public class IndexedHeap<T> {
+
+	public static interface SlotAccessor<T> {
+		/**
+		 * @return the slot last set for this element, or -1 if it has none
+		 */
+		public int getSlot(T element);
+		public void setSlot(T element, int slot);
+	}
+
+	private final int arity;
+	private final SlotAccessor<T> slots;
+
+	private Object[] elements;
+	private double[] keys;
+	private int size;
+
+	public IndexedHeap(SlotAccessor<T> slots) {
+		this(4, 16, slots);
+	}
+
+	/**
+	 * @param arity - children per node, 4 is a good choice for most uses
+	 * @param initialCapacity
+	 * @param slots - where each element's slot in this heap is kept
+	 */
+	public IndexedHeap(int arity, int initialCapacity, SlotAccessor<T> slots) {
+		if (arity < 2) throw new IllegalArgumentException("arity must be at least 2");
+		this.arity = arity;
+		this.slots = slots;
+		this.elements = new Object[Math.max(1, initialCapacity)];
+		this.keys = new double[Math.max(1, initialCapacity)];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean contains(T element) {
+		int slot = slots.getSlot(element);
+		return slot >= 0 && slot < size && elements[slot] == element;
+	}
+
+	/**
+	 * Adds the element with the given key, or changes its key if it is already in the heap
+	 */
+	public void offer(T element, double key) {
+		if (contains(element)) {
+			update(element, key);
+			return;
+		}
+		if (size == elements.length) {
+			elements = Arrays.copyOf(elements, size * 2);
+			keys = Arrays.copyOf(keys, size * 2);
+		}
+		int slot = size++;
+		elements[slot] = element;
+		keys[slot] = key;
+		slots.setSlot(element, slot);
+		siftUp(slot);
+	}
+
+	/**
+	 * Changes the key of an element already in the heap
+	 */
+	public void update(T element, double key) {
+		if (!contains(element)) throw new IllegalArgumentException(element+" is not in this heap");
+		int slot = slots.getSlot(element);
+		double previous = keys[slot];
+		keys[slot] = key;
+		if (key < previous) siftUp(slot);
+		else siftDown(slot);
+	}
+
+	@SuppressWarnings("unchecked")
+	public T peek() {
+		if (size == 0) return null;
+		return (T) elements[0];
+	}
+
+	/**
+	 * @return the key of the element peek() would return, or NaN if the heap is empty
+	 */
+	public double peekKey() {
+		if (size == 0) return Double.NaN;
+		return keys[0];
+	}
+
+	/**
+	 * Removes and returns the element with the lowest key, or null if the heap is empty
+	 */
+	public T poll() {
+		T head = peek();
+		if (head != null) removeAt(0);
+		return head;
+	}
+
+	/**
+	 * @return false if the element was not in the heap
+	 */
+	public boolean remove(T element) {
+		if (!contains(element)) return false;
+		removeAt(slots.getSlot(element));
+		return true;
+	}
+
+	/**
+	 * Returns the element in the given slot, slots 0 through size()-1 are in use
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(int slot) {
+		if (slot < 0 || slot >= size) throw new IndexOutOfBoundsException();
+		return (T) elements[slot];
+	}
+
+	public double getKey(T element) {
+		if (!contains(element)) throw new IllegalArgumentException(element+" is not in this heap");
+		return keys[slots.getSlot(element)];
+	}
+
+	/**
+	 * Recomputes every key with the given function and restores the heap in O(n)
+	 */
+	@SuppressWarnings("unchecked")
+	public void rekeyAll(ToDoubleFunction<? super T> keyFunction) {
+		for (int i = 0; i < size; i++) {
+			keys[i] = keyFunction.applyAsDouble((T) elements[i]);
+		}
+		heapify();
+	}
+
+	/**
+	 * Removes every element matching the predicate and restores the heap in O(n)
+	 * @return the number of elements removed
+	 */
+	@SuppressWarnings("unchecked")
+	public int removeIf(Predicate<? super T> filter) {
+		int kept = 0;
+		for (int i = 0; i < size; i++) {
+			T element = (T) elements[i];
+			if (filter.test(element)) {
+				slots.setSlot(element, -1);
+				continue;
+			}
+			elements[kept] = element;
+			keys[kept] = keys[i];
+			slots.setSlot(element, kept);
+			kept++;
+		}
+		int removed = size - kept;
+		Arrays.fill(elements, kept, size, null);
+		size = kept;
+		if (removed > 0) heapify();
+		return removed;
+	}
+
+	@SuppressWarnings("unchecked")
+	public void clear() {
+		for (int i = 0; i < size; i++) {
+			slots.setSlot((T) elements[i], -1);
+		}
+		Arrays.fill(elements, 0, size, null);
+		size = 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void removeAt(int slot) {
+		slots.setSlot((T) elements[slot], -1);
+		int last = --size;
+		if (slot != last) {
+			move(last, slot);
+			elements[last] = null;
+			if (slot > 0 && keys[slot] < keys[parent(slot)]) siftUp(slot);
+			else siftDown(slot);
+		} else {
+			elements[last] = null;
+		}
+	}
+
+	private void heapify() {
+		if (size < 2) return;
+		for (int slot = parent(size - 1); slot >= 0; slot--) {
+			siftDown(slot);
+		}
+	}
+
+	private int parent(int slot) {
+		return (slot - 1) / arity;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void move(int from, int to) {
+		elements[to] = elements[from];
+		keys[to] = keys[from];
+		slots.setSlot((T) elements[to], to);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void siftUp(int slot) {
+		Object element = elements[slot];
+		double key = keys[slot];
+		while (slot > 0) {
+			int parent = parent(slot);
+			if (keys[parent] <= key) break;
+			move(parent, slot);
+			slot = parent;
+		}
+		elements[slot] = element;
+		keys[slot] = key;
+		slots.setSlot((T) element, slot);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void siftDown(int slot) {
+		Object element = elements[slot];
+		double key = keys[slot];
+		while (true) {
+			int firstChild = slot * arity + 1;
+			if (firstChild >= size) break;
+			int best = firstChild;
+			int lastChild = Math.min(firstChild + arity, size);
+			for (int child = firstChild + 1; child < lastChild; child++) {
+				if (keys[child] < keys[best]) best = child;
+			}
+			if (keys[best] >= key) break;
+			move(best, slot);
+			slot = best;
+		}
+		elements[slot] = element;
+		keys[slot] = key;
+		slots.setSlot((T) element, slot);
+	}
+
+}
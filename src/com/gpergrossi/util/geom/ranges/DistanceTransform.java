@@ -1,5 +1,7 @@
 package com.gpergrossi.util.geom.ranges;
 
+import java.util.stream.IntStream;
+
 import com.gpergrossi.util.data.Tuple2;
 
 public class DistanceTransform {
@@ -17,27 +19,100 @@ public class DistanceTransform {
 	 * @return
 	 */
 	public static Tuple2<Int2DRange.Floats, Float> transform(Int2DRange.Bits shape) {
-		final float[] yDist = new float[shape.size()];
+		return transform(shape, null);
+	}
+	
+	/**
+	 * Computes the feature transform of the shape: for every tile, the index (in the
+	 * shape's own y*width+x order) of the nearest set tile, or -1 if the shape is empty.
+	 * This is a raster voronoi diagram of the set tiles.
+	 * 
+	 * @param shape
+	 * @return
+	 */
+	public static Int2DRange.Integers featureTransform(Int2DRange.Bits shape) {
+		final Int2DRange.Integers nearest = shape.createIntegers();
+		transform(shape, nearest);
+		return nearest;
+	}
+	
+	/**
+	 * Spreads every label that is not equal to {@code background} to all of the tiles
+	 * nearer to it than to any other labeled tile. Tiles are left as {@code background}
+	 * only if there are no labeled tiles at all.
+	 * 
+	 * @param labels
+	 * @param background - the value of unlabeled tiles
+	 * @return
+	 */
+	public static Int2DRange.Integers labelTransform(Int2DRange.Integers labels, int background) {
+		final Int2DRange.Bits shape = labels.createBits();
+		for (int i = 0; i < labels.size(); i++) {
+			if (labels.data[i] != background) shape.set(i, true);
+		}
+		
+		final Int2DRange.Integers result = featureTransform(shape);
+		for (int i = 0; i < result.size(); i++) {
+			final int nearest = result.data[i];
+			result.data[i] = (nearest == -1) ? background : labels.data[nearest];
+		}
+		return result;
+	}
+	
+	/**
+	 * Computes the distance transform and, if {@code nearest} is not null, the feature transform 
+	 * of the shape in the same pass. See {@link #featureTransform(Int2DRange.Bits)}.
+	 * 
+	 * @param shape
+	 * @param nearest - output for the index of the nearest set tile, must cover the same range as shape
+	 * @return
+	 */
+	public static Tuple2<Int2DRange.Floats, Float> transform(Int2DRange.Bits shape, Int2DRange.Integers nearest) {
 		final int width = shape.width;
 		final int height = shape.height;
+		final float[] yDist = new float[shape.size()];
 		
-		// Initialize + First Scan + Second Scan
-		for (int x = 0; x < width; x++) {
-			int index = x;
-			
-			yDist[index] = shape.get(x+shape.minX, 0+shape.minY) ? 0 : Float.POSITIVE_INFINITY;
-			
-			// Initialize + First scan: cell[x,y] = 0 or cell[x,y-1]+1
-			for (int y = 1; y < height; y++) {
-				index += width;
-				if (shape.get(x+shape.minX, y+shape.minY)) yDist[index] = 0; // init
-				else yDist[index] = yDist[index - width] + 1; // scan down
+		// Row of the nearest set tile in the same column, only tracked for the feature transform
+		final int[] yNearest;
+		if (nearest != null) {
+			if (nearest.width != width || nearest.height != height) {
+				throw new IllegalArgumentException("Feature output range "+nearest+" does not match shape range "+shape);
 			}
-			
-			// Second scan: cell[x,y] = min(cell[x,y], cell[x,y+1]+1)
-			for (int y = height-2; y >= 0; y--) {
-				index -= width;
-				yDist[index] = min(yDist[index], yDist[index + width] + 1);
+			yNearest = new int[shape.size()];
+		} else {
+			yNearest = null;
+		}
+		
+		// Initialize + First scan, a row and up to 64 tiles at a time: cell[x,y] = 0 or cell[x,y-1]+1
+		for (int y = 0; y < height; y++) {
+			final int rowIndex = y*width;
+			for (int x = 0; x < width; x += 64) {
+				final int count = Math.min(64, width - x);
+				long bits = shape.readBits(rowIndex + x, count);
+				for (int index = rowIndex + x; index < rowIndex + x + count; index++, bits >>>= 1) {
+					if ((bits & 1) != 0) {
+						yDist[index] = 0; // init
+						if (yNearest != null) yNearest[index] = y;
+					} else if (y == 0) {
+						yDist[index] = Float.POSITIVE_INFINITY;
+						if (yNearest != null) yNearest[index] = -1;
+					} else {
+						yDist[index] = yDist[index - width] + 1; // scan down
+						if (yNearest != null) yNearest[index] = yNearest[index - width];
+					}
+				}
+			}
+		}
+		
+		// Second scan: cell[x,y] = min(cell[x,y], cell[x,y+1]+1)
+		for (int y = height-2; y >= 0; y--) {
+			final int rowIndex = y*width;
+			for (int index = rowIndex; index < rowIndex + width; index++) {
+				final float below = yDist[index + width] + 1;
+				if (below < yDist[index]) {
+					yDist[index] = below;
+					if (yNearest != null) yNearest[index] = yNearest[index + width];
+				}
 			}
 		}
 
@@ -71,6 +146,8 @@ public class DistanceTransform {
 			};
 
 			int scout = 0;
+			mins[0] = 0;
+			partition[0] = 0;
 			
 			for (int x = 1; x < width; x++) {				
 				for (; scout >= 0; scout--) {
@@ -96,6 +173,11 @@ public class DistanceTransform {
 				final float distance = sqrt(distFunc.get(x, mins[scout]));
 				maxDist = max(maxDist, distance);
 				result.set(rowIndex+x, distance);
+				if (nearest != null) {
+					final int nearestX = mins[scout];
+					final int nearestY = yNearest[rowIndex + nearestX];
+					nearest.set(rowIndex+x, (nearestY == -1) ? -1 : nearestY*width + nearestX);
+				}
 				if (x == partition[scout]) scout--;
 			}
 		}
@@ -103,6 +185,140 @@ public class DistanceTransform {
 		return new Tuple2<>(result, maxDist);
 	}
 
+	/**
+	 * Exact euclidean distance transform of a volume. The same separable lower envelope 
+	 * scan as the 2D transform is applied along y, then x, then z. The y and x passes run 
+	 * in parallel z slabs and the z pass runs in parallel x slabs, each task only needing 
+	 * scratch space for a single line of the volume.
+	 * 
+	 * @param shape
+	 * @return the distance to the nearest set voxel and the maximum distance
+	 */
+	public static Tuple2<Int3DRange.Floats, Float> transform(Int3DRange.Bits shape) {
+		final Int3DRange.Floats result = shape.createFloats();
+		final float[] data = result.data;
+		
+		IntStream.range(0, shape.size()).parallel().forEach(i -> {
+			data[i] = shape.get(i) ? 0 : Float.POSITIVE_INFINITY;
+		});
+		
+		transformSquared(result);
+		
+		final int sliceSize = shape.width * shape.height;
+		final float maxDist = (float) IntStream.range(0, shape.depth).parallel().mapToDouble(z -> {
+			float sliceMax = 0;
+			for (int i = z*sliceSize; i < (z+1)*sliceSize; i++) {
+				final float distance = sqrt(data[i]);
+				data[i] = distance;
+				sliceMax = max(sliceMax, distance);
+			}
+			return sliceMax;
+		}).max().orElse(0);
+		
+		return new Tuple2<>(result, maxDist);
+	}
+	
+	/**
+	 * Transforms a volume of squared costs in place. Every voxel ends up holding 
+	 * min(cost[v] + |p - v|^2) over all voxels v, so a volume of 0 (source) and 
+	 * infinity (empty) becomes the squared euclidean distance transform.
+	 * 
+	 * @param squared
+	 */
+	public static void transformSquared(Int3DRange.Floats squared) {
+		final float[] data = squared.data;
+		final int width = squared.width;
+		final int height = squared.height;
+		final int depth = squared.depth;
+		
+		// Data is in ((z*width + x)*height + y) order
+		final int strideY = 1;
+		final int strideX = height;
+		final int strideZ = width * height;
+		
+		// Along y then x, a z slab at a time
+		IntStream.range(0, depth).parallel().forEach(z -> {
+			final LineScratch scratch = new LineScratch(Math.max(width, height));
+			final int sliceStart = z*strideZ;
+			for (int x = 0; x < width; x++) {
+				transformLine(data, sliceStart + x*strideX, strideY, height, scratch);
+			}
+			for (int y = 0; y < height; y++) {
+				transformLine(data, sliceStart + y*strideY, strideX, width, scratch);
+			}
+		});
+		
+		// Along z, an x slab at a time
+		IntStream.range(0, width).parallel().forEach(x -> {
+			final LineScratch scratch = new LineScratch(depth);
+			for (int y = 0; y < height; y++) {
+				transformLine(data, x*strideX + y*strideY, strideZ, depth, scratch);
+			}
+		});
+	}
+	
+	private static final class LineScratch {
+		final float[] costs;
+		final int[] mins;
+		final double[] partition;
+		
+		LineScratch(int length) {
+			this.costs = new float[length];
+			this.mins = new int[length];
+			this.partition = new double[length+1];
+		}
+	}
+	
+	/**
+	 * One dimensional squared distance transform of the line of n values starting 
+	 * at data[start] and spaced stride apart. Infinite costs never contribute.
+	 */
+	private static void transformLine(float[] data, int start, int stride, int n, LineScratch scratch) {
+		final float[] costs = scratch.costs;
+		final int[] mins = scratch.mins;
+		final double[] partition = scratch.partition;
+		
+		int scout = -1;
+		for (int i = 0, index = start; i < n; i++, index += stride) {
+			final float cost = data[index];
+			costs[i] = cost;
+			if (cost == Float.POSITIVE_INFINITY) continue;
+			
+			if (scout == -1) {
+				scout = 0;
+				mins[0] = i;
+				partition[0] = Double.NEGATIVE_INFINITY;
+				partition[1] = Double.POSITIVE_INFINITY;
+				continue;
+			}
+			
+			double intersection = seperator(costs, mins[scout], i);
+			while (intersection <= partition[scout]) {
+				scout--;
+				intersection = seperator(costs, mins[scout], i);
+			}
+			scout++;
+			mins[scout] = i;
+			partition[scout] = intersection;
+			partition[scout+1] = Double.POSITIVE_INFINITY;
+		}
+		if (scout == -1) return; // Nothing to spread
+		
+		scout = 0;
+		for (int i = 0, index = start; i < n; i++, index += stride) {
+			while (partition[scout+1] < i) scout++;
+			final int d = i - mins[scout];
+			data[index] = d*d + costs[mins[scout]];
+		}
+	}
+	
+	/**
+	 * Position at which the parabola rooted at u starts to be lower than the one rooted at i
+	 */
+	private static double seperator(float[] costs, int i, int u) {
+		return ((costs[u] + (double) u*u) - (costs[i] + (double) i*i)) / (2.0*(u-i));
+	}
+
 	private interface IFloatFunction2I {
 		public float get(int x, int y);
 	}
@@ -111,10 +327,6 @@ public class DistanceTransform {
 		public int get(int x, int y);
 	}
 
-	private static final float min(final float a, final float b) {
-		return (b < a) ? b : a;
-	}
-	
 	private static final float max(final float a, final float b) {
 		return (b > a) ? b : a;
 	}
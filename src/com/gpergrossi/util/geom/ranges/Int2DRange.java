@@ -3,7 +3,9 @@ package com.gpergrossi.util.geom.ranges;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.function.IntPredicate;
 import java.util.function.Predicate;
+import java.util.stream.IntStream;
 
 import com.gpergrossi.util.data.Iterators;
 import com.gpergrossi.util.geom.shapes.Rect;
@@ -132,6 +134,98 @@ public class Int2DRange {
 		return "("+minX+", "+minY+") to ("+maxX+", "+maxY+")";
 	}
 	
+	public static interface TileConsumer {
+		public void accept(int x, int y, int index);
+	}
+	
+	/**
+	 * Extends Predicate&lt;Float&gt; so that lambdas passed to methods that are also overloaded
+	 * for a Predicate&lt;Float&gt; pick the unboxed version instead of being ambiguous
+	 */
+	public static interface FloatPredicate extends Predicate<Float> {
+		public boolean test(float value);
+		
+		@Override
+		public default boolean test(Float value) {
+			return test(value.floatValue());
+		}
+	}
+	
+	public static interface BytePredicate {
+		public boolean test(byte value);
+	}
+	
+	/**
+	 * Calls the consumer for every tile in y*width+x order without creating any objects
+	 */
+	public void forEach(TileConsumer consumer) {
+		int index = 0;
+		for (int y = minY; y <= maxY; y++) {
+			for (int x = minX; x <= maxX; x++) {
+				consumer.accept(x, y, index++);
+			}
+		}
+	}
+	
+	/**
+	 * Calls the consumer for every tile, splitting rows between the threads of the common pool.
+	 * Tiles in the same row are visited in order by the same thread.
+	 */
+	public void forEachParallel(TileConsumer consumer) {
+		IntStream.range(0, height).parallel().forEach(row -> {
+			final int y = row + minY;
+			int index = row * width;
+			for (int x = minX; x <= maxX; x++) {
+				consumer.accept(x, y, index++);
+			}
+		});
+	}
+	
+	/**
+	 * Finds the smallest sub-range outside of which every tile index is removable.
+	 * Returns an empty range if all tiles are removable.
+	 */
+	protected Int2DRange getTrimmedRangeByIndex(IntPredicate indexRemovable) {
+		int trimMinY = -1, trimMaxY = -1;
+		for (int y = 0; y < height; y++) {
+			if (trimMinY == -1)	for (int x = 0; x < width; x++) {
+				if (indexRemovable.test(y*width + x)) continue;
+				trimMinY = y; break;
+			}
+			int yr = height-1-y;
+			if (trimMaxY == -1)	for (int x = 0; x < width; x++) {
+				if (indexRemovable.test(yr*width + x)) continue;
+				trimMaxY = yr; break;
+			}
+			if (trimMinY != -1 && trimMaxY != -1) break;
+		}
+		if (trimMinY == -1) return new Int2DRange(minX, minY, minX-1, minY-1);
+		
+		int trimMinX = -1, trimMaxX = -1;
+		for (int x = 0; x < width; x++) {
+			if (trimMinX == -1)	for (int y = trimMinY; y <= trimMaxY; y++) {
+				if (indexRemovable.test(y*width + x)) continue;
+				trimMinX = x; break;
+			}
+			int xr = width-1-x;
+			if (trimMaxX == -1)	for (int y = trimMinY; y <= trimMaxY; y++) {
+				if (indexRemovable.test(y*width + xr)) continue;
+				trimMaxX = xr; break;
+			}
+			if (trimMinX != -1 && trimMaxX != -1) break;
+		}
+		
+		return new Int2DRange(this.minX + trimMinX, this.minY + trimMinY, this.minX + trimMaxX, this.minY + trimMaxY);
+	}
+	
+	protected int countByIndex(IntPredicate indexMatches) {
+		int count = 0;
+		for (int i = 0; i < size(); i++) {
+			if (indexMatches.test(i)) count++;
+		}
+		return count;
+	}
+	
 	public Iterable<Int2D.WithIndex> getAllMutable() {
 		return new Iterable<Int2D.WithIndex>() {
 			@Override
@@ -223,10 +317,9 @@ public class Int2DRange {
 			int minY = Math.max(src.minY, dest.minY-dstStartY);
 			int maxX = Math.min(src.maxX, dest.maxX-dstStartX);
 			int maxY = Math.min(src.maxY, dest.maxY-dstStartY);
+			if (minX > maxX) return;
 			for (int y = minY; y <= maxY; y++) {
-				for (int x = minX; x <= maxX; x++) {
-					dest.set(x+dstStartX, y+dstStartY, src.get(x, y));
-				}	
+				System.arraycopy(src.data, src.indexFor(minX, y), dest.data, dest.indexFor(minX+dstStartX, y+dstStartY), maxX-minX+1);
 			}
 		}
 		
@@ -310,38 +403,20 @@ public class Int2DRange {
 			return this.get(x, y);
 		}
 
+		public Int2DRange getTrimmedRange(FloatPredicate predicateRemovable) {
+			return getTrimmedRangeByIndex(i -> predicateRemovable.test(data[i]));
+		}
+		
+		/**
+		 * @deprecated boxes every value, use getTrimmedRange(FloatPredicate)
+		 */
+		@Deprecated
 		public Int2DRange getTrimmedRange(Predicate<Float> predicateRemovable) {
-			int trimMinY = -1, trimMaxY = -1;
-			for (int y = 0; y < height; y++) {
-				if (trimMinY == -1)	for (int x = 0; x < width; x++) {
-					if (predicateRemovable.test(data[y*width + x])) continue;
-					trimMinY = y; break;
-				}
-				int yr = height-1-y;
-				if (trimMaxY == -1)	for (int x = 0; x < width; x++) {
-					if (predicateRemovable.test(data[yr*width + x])) continue;
-					trimMaxY = yr; break;
-				}
-				if (trimMinY != -1 && trimMaxY != -1) break;
-			}
-			
-			int trimMinX = -1, trimMaxX = -1;
-			for (int x = 0; x < width; x++) {
-				if (trimMinX == -1)	for (int y = 0; y < height; y++) {
-					if (predicateRemovable.test(data[y*width + x])) continue;
-					trimMinX = x; break;
-				}
-				int xr = width-1-x;
-				if (trimMaxX == -1)	for (int y = 0; y < height; y++) {
-					if (predicateRemovable.test(data[y*width + xr])) continue;
-					trimMaxX = xr; break;
-				}
-				if (trimMinX != -1 && trimMaxX != -1) break;
-			}
-			
-
-			
-			return new Int2DRange(this.minX + trimMinX, this.minY + trimMinY, this.minX + trimMaxX, this.minY + trimMaxY);
+			return getTrimmedRange((float value) -> predicateRemovable.test(value));
+		}
+		
+		public int count(FloatPredicate predicate) {
+			return countByIndex(i -> predicate.test(data[i]));
 		}
 
 		public float lerp(float x, float y, float outOfBoundsValue) {
@@ -398,10 +473,9 @@ public class Int2DRange {
 			int minY = Math.max(src.minY, dest.minY-dstStartY);
 			int maxX = Math.min(src.maxX, dest.maxX-dstStartX);
 			int maxY = Math.min(src.maxY, dest.maxY-dstStartY);
+			if (minX > maxX) return;
 			for (int y = minY; y <= maxY; y++) {
-				for (int x = minX; x <= maxX; x++) {
-					dest.set(x+dstStartX, y+dstStartY, src.get(x, y));
-				}	
+				System.arraycopy(src.data, src.indexFor(minX, y), dest.data, dest.indexFor(minX+dstStartX, y+dstStartY), maxX-minX+1);
 			}
 		}
 		
@@ -486,6 +560,14 @@ public class Int2DRange {
 			if (!this.contains(x, y)) return defaultValue;
 			return this.get(x, y);
 		}
+
+		public Int2DRange getTrimmedRange(BytePredicate predicateRemovable) {
+			return getTrimmedRangeByIndex(i -> predicateRemovable.test(data[i]));
+		}
+		
+		public int count(BytePredicate predicate) {
+			return countByIndex(i -> predicate.test(data[i]));
+		}
 		
 	}
 
@@ -500,10 +582,9 @@ public class Int2DRange {
 			int minY = Math.max(src.minY, dest.minY-dstStartY);
 			int maxX = Math.min(src.maxX, dest.maxX-dstStartX);
 			int maxY = Math.min(src.maxY, dest.maxY-dstStartY);
+			if (minX > maxX) return;
 			for (int y = minY; y <= maxY; y++) {
-				for (int x = minX; x <= maxX; x++) {
-					dest.set(x+dstStartX, y+dstStartY, src.get(x, y));
-				}	
+				System.arraycopy(src.data, src.indexFor(minX, y), dest.data, dest.indexFor(minX+dstStartX, y+dstStartY), maxX-minX+1);
 			}
 		}
 		
@@ -592,6 +673,14 @@ public class Int2DRange {
 			if (!this.contains(x, y)) return defaultValue;
 			return this.get(x, y);
 		}
+
+		public Int2DRange getTrimmedRange(IntPredicate predicateRemovable) {
+			return getTrimmedRangeByIndex(i -> predicateRemovable.test(data[i]));
+		}
+		
+		public int count(IntPredicate predicate) {
+			return countByIndex(i -> predicate.test(data[i]));
+		}
 		
 	}
 	
@@ -601,19 +690,68 @@ public class Int2DRange {
 	
 	public static class Bits extends Int2DRange {
 		
+		private static final int OP_COPY = 0;
+		private static final int OP_AND = 1;
+		private static final int OP_OR = 2;
+		private static final int OP_XOR = 3;
+		private static final int OP_AND_NOT = 4;
+		
 		public static void copyRange(Bits src, Bits dest, int dstStartX, int dstStartY) {
+			combineRange(src, dest, dstStartX, dstStartY, OP_COPY);
+		}
+		
+		/**
+		 * Applies dest = dest (op) src for every tile where both ranges overlap, a row and up to 64 tiles at a time
+		 */
+		private static void combineRange(Bits src, Bits dest, int dstStartX, int dstStartY, int op) {
+			if (dstStartX == 0 && dstStartY == 0 && src.minX == dest.minX && src.minY == dest.minY && src.maxX == dest.maxX && src.maxY == dest.maxY) {
+				for (int i = 0; i < dest.data.length; i++) {
+					dest.data[i] = apply(op, dest.data[i], src.data[i]);
+				}
+				return;
+			}
+			
 			int minX = Math.max(src.minX, dest.minX-dstStartX);
 			int minY = Math.max(src.minY, dest.minY-dstStartY);
 			int maxX = Math.min(src.maxX, dest.maxX-dstStartX);
 			int maxY = Math.min(src.maxY, dest.maxY-dstStartY);
 			for (int y = minY; y <= maxY; y++) {
-				for (int x = minX; x <= maxX; x++) {
-					dest.set(x+dstStartX, y+dstStartY, src.get(x, y));
-				}	
+				int srcIndex = src.indexFor(minX, y);
+				int dstIndex = dest.indexFor(minX+dstStartX, y+dstStartY);
+				int remaining = maxX - minX + 1;
+				while (remaining > 0) {
+					int count = Math.min(remaining, 64);
+					dest.applyBits(dstIndex, count, src.readBits(srcIndex, count), op);
+					srcIndex += count;
+					dstIndex += count;
+					remaining -= count;
+				}
 			}
 		}
 		
-		public final int[] data;		
+		private static long apply(int op, long dst, long src) {
+			switch (op) {
+				case OP_COPY: return src;
+				case OP_AND: return dst & src;
+				case OP_OR: return dst | src;
+				case OP_XOR: return dst ^ src;
+				case OP_AND_NOT: return dst & ~src;
+				default: throw new IllegalArgumentException("Unknown operation "+op);
+			}
+		}
+		
+		/**
+		 * Mask of the lowest count bits, count in [0, 64]
+		 */
+		private static long lowBits(int count) {
+			return (count == 64) ? -1L : ((1L << count) - 1L);
+		}
+		
+		/**
+		 * Bits are stored 64 to a word, tile index i in bit (i % 64) of word (i / 64).
+		 * Bits past size() are always zero.
+		 */
+		public final long[] data;		
 		
 		public Bits(Int2DRange range) {
 			this(range.minX, range.minY, range.maxX, range.maxY);
@@ -625,7 +763,7 @@ public class Int2DRange {
 		
 		public Bits(int minX, int minY, int maxX, int maxY) {
 			super(minX, minY, maxX, maxY);
-			this.data = new int[(size() / 32)+1];
+			this.data = new long[(size() + 63) >>> 6];
 		}
 		
 		@Override
@@ -665,21 +803,12 @@ public class Int2DRange {
 		}
 		
 		public boolean get(int index) {
-			int slot = Math.floorDiv(index, 32);
-			int mask = (1 << Math.floorMod(index, 32));
-			
-			try {
-				return (data[slot] & mask) == mask;
-			} catch (Exception e) {
-				System.out.println("new Int2DRange.Bits ("+minX+", "+minY+", "+maxX+", "+maxY+"), size = "+size()+", data.length = "+data.length);
-				System.out.println("Accessing index "+index+" with slot="+slot+" and mask="+mask);
-				throw e;
-			}
+			return (data[index >>> 6] & (1L << index)) != 0;
 		}
 		
 		public void set(int index, boolean value) {
-			int slot = Math.floorDiv(index, 32);
-			int mask = (1 << Math.floorMod(index, 32));
+			int slot = index >>> 6;
+			long mask = (1L << index);
 			data[slot] = (data[slot] & ~mask) | (value ? mask : 0);
 		}
 		
@@ -691,6 +820,190 @@ public class Int2DRange {
 			set((y-minY)*width+(x-minX), value);
 		}
 		
+		/**
+		 * Reads count (up to 64) consecutive bits starting at the given tile index. 
+		 * The tile at index is returned in the lowest bit.
+		 */
+		public long readBits(int index, int count) {
+			if (count == 0) return 0;
+			int slot = index >>> 6;
+			int shift = index & 63;
+			long bits = data[slot] >>> shift;
+			if (shift + count > 64) bits |= data[slot+1] << (64 - shift);
+			return bits & lowBits(count);
+		}
+		
+		/**
+		 * Overwrites count (up to 64) consecutive bits starting at the given tile index
+		 * with the lowest bits of the given word.
+		 */
+		public void writeBits(int index, int count, long bits) {
+			applyBits(index, count, bits, OP_COPY);
+		}
+		
+		private void applyBits(int index, int count, long bits, int op) {
+			if (count == 0) return;
+			bits &= lowBits(count);
+			int slot = index >>> 6;
+			int shift = index & 63;
+			
+			long mask = lowBits(Math.min(count, 64 - shift)) << shift;
+			data[slot] = (data[slot] & ~mask) | (apply(op, data[slot], bits << shift) & mask);
+			
+			if (shift + count > 64) {
+				long high = bits >>> (64 - shift);
+				mask = lowBits(shift + count - 64);
+				data[slot+1] = (data[slot+1] & ~mask) | (apply(op, data[slot+1], high) & mask);
+			}
+		}
+		
+		/**
+		 * Sets (or clears) every tile index in [fromIndex, toIndex)
+		 */
+		public void setRange(int fromIndex, int toIndex, boolean value) {
+			if (fromIndex >= toIndex) return;
+			int firstSlot = fromIndex >>> 6;
+			int lastSlot = (toIndex - 1) >>> 6;
+			long firstMask = -1L << fromIndex;
+			long lastMask = -1L >>> -toIndex;
+			if (firstSlot == lastSlot) {
+				setMasked(firstSlot, firstMask & lastMask, value);
+				return;
+			}
+			setMasked(firstSlot, firstMask, value);
+			long fill = value ? -1L : 0L;
+			for (int slot = firstSlot+1; slot < lastSlot; slot++) {
+				data[slot] = fill;
+			}
+			setMasked(lastSlot, lastMask, value);
+		}
+		
+		private void setMasked(int slot, long mask, boolean value) {
+			if (value) data[slot] |= mask;
+			else data[slot] &= ~mask;
+		}
+		
+		/**
+		 * Sets (or clears) every tile in the given rectangle that is inside this range
+		 */
+		public void fill(int minX, int minY, int maxX, int maxY, boolean value) {
+			minX = Math.max(minX, this.minX);
+			minY = Math.max(minY, this.minY);
+			maxX = Math.min(maxX, this.maxX);
+			maxY = Math.min(maxY, this.maxY);
+			if (minX > maxX) return;
+			for (int y = minY; y <= maxY; y++) {
+				int rowStart = indexFor(minX, y);
+				setRange(rowStart, rowStart + (maxX - minX + 1), value);
+			}
+		}
+		
+		public void fill(Int2DRange rect, boolean value) {
+			fill(rect.minX, rect.minY, rect.maxX, rect.maxY, value);
+		}
+		
+		public void fill(boolean value) {
+			setRange(0, size(), value);
+		}
+		
+		/**
+		 * this = this AND other, for all tiles where the two ranges overlap
+		 */
+		public void and(Bits other) {
+			combineRange(other, this, 0, 0, OP_AND);
+		}
+		
+		/**
+		 * this = this OR other, for all tiles where the two ranges overlap
+		 */
+		public void or(Bits other) {
+			combineRange(other, this, 0, 0, OP_OR);
+		}
+		
+		/**
+		 * this = this XOR other, for all tiles where the two ranges overlap
+		 */
+		public void xor(Bits other) {
+			combineRange(other, this, 0, 0, OP_XOR);
+		}
+		
+		/**
+		 * this = this AND NOT other, for all tiles where the two ranges overlap
+		 */
+		public void andNot(Bits other) {
+			combineRange(other, this, 0, 0, OP_AND_NOT);
+		}
+		
+		/**
+		 * Inverts every tile
+		 */
+		public void not() {
+			for (int i = 0; i < data.length; i++) {
+				data[i] = ~data[i];
+			}
+			int tail = size() & 63;
+			if (tail != 0) data[data.length-1] &= lowBits(tail);
+		}
+		
+		/**
+		 * @return the number of set tiles
+		 */
+		public int cardinality() {
+			int count = 0;
+			for (int i = 0; i < data.length; i++) {
+				count += Long.bitCount(data[i]);
+			}
+			return count;
+		}
+		
+		/**
+		 * @return the index of the first set tile at or after fromIndex, or -1 if there is none
+		 */
+		public int nextSetBit(int fromIndex) {
+			if (fromIndex >= size()) return -1;
+			int slot = fromIndex >>> 6;
+			long word = data[slot] & (-1L << fromIndex);
+			while (true) {
+				if (word != 0) return (slot << 6) + Long.numberOfTrailingZeros(word);
+				if (++slot == data.length) return -1;
+				word = data[slot];
+			}
+		}
+		
+		/**
+		 * @return the index of the first clear tile at or after fromIndex, or size() if there is none
+		 */
+		public int nextClearBit(int fromIndex) {
+			if (fromIndex >= size()) return size();
+			int slot = fromIndex >>> 6;
+			long word = ~data[slot] & (-1L << fromIndex);
+			while (true) {
+				if (word != 0) return Math.min((slot << 6) + Long.numberOfTrailingZeros(word), size());
+				if (++slot == data.length) return size();
+				word = ~data[slot];
+			}
+		}
+		
+		public static interface RunConsumer {
+			public void accept(int y, int minX, int maxX);
+		}
+		
+		/**
+		 * Calls the consumer once for every horizontal run of set tiles, in row order.
+		 */
+		public void forEachRun(RunConsumer consumer) {
+			for (int y = 0; y < height; y++) {
+				final int rowStart = y*width;
+				final int rowEnd = rowStart + width;
+				int start = nextSetBit(rowStart);
+				while (start != -1 && start < rowEnd) {
+					int end = Math.min(nextClearBit(start), rowEnd);
+					consumer.accept(y+minY, start-rowStart+minX, end-1-rowStart+minX);
+					start = nextSetBit(end);
+				}
+			}
+		}
+		
 		public Iterable<StoredBit> getAllBits() {
 			return Iterators.cast(Bits.super.getAllMutable(), t -> new Int2D.StoredBit(Bits.this, t.x(), t.y(), t.index));
 		}
@@ -703,6 +1016,13 @@ public class Int2DRange {
 			if (!this.contains(x, y)) return defaultValue;
 			return this.get(x, y);
 		}
+
+		/**
+		 * Finds the smallest sub-range outside of which every tile is equal to removableValue
+		 */
+		public Int2DRange getTrimmedRange(boolean removableValue) {
+			return getTrimmedRangeByIndex(i -> get(i) == removableValue);
+		}
 		
 	}
 
@@ -3,6 +3,7 @@ package com.gpergrossi.util.geom.ranges;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.stream.IntStream;
 
 import com.gpergrossi.util.geom.vectors.Double3D;
 import com.gpergrossi.util.geom.vectors.Int3D;
@@ -110,7 +111,7 @@ public class Int3DRange {
 		return indexFor(pt.x(), pt.y(), pt.z());
 	}
 	
-	private int indexFor(int x, int y, int z) {
+	public int indexFor(int x, int y, int z) {
 		return ((z-minZ)*width + (x-minX))*height + (y-minY);
 	}
 
@@ -134,6 +135,40 @@ public class Int3DRange {
 		return "("+minX+", "+minY+", "+minZ+") to ("+maxX+", "+maxY+", "+maxZ+")";
 	}
 	
+	public static interface TileConsumer {
+		public void accept(int x, int y, int z, int index);
+	}
+	
+	/**
+	 * Calls the consumer for every tile in index order without creating any objects
+	 */
+	public void forEach(TileConsumer consumer) {
+		int index = 0;
+		for (int z = minZ; z <= maxZ; z++) {
+			for (int x = minX; x <= maxX; x++) {
+				for (int y = minY; y <= maxY; y++) {
+					consumer.accept(x, y, z, index++);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Calls the consumer for every tile, splitting z slabs between the threads of the common pool.
+	 * Tiles in the same slab are visited in order by the same thread.
+	 */
+	public void forEachParallel(TileConsumer consumer) {
+		IntStream.range(0, depth).parallel().forEach(slab -> {
+			final int z = slab + minZ;
+			int index = slab * width * height;
+			for (int x = minX; x <= maxX; x++) {
+				for (int y = minY; y <= maxY; y++) {
+					consumer.accept(x, y, z, index++);
+				}
+			}
+		});
+	}
+	
 	public Iterable<Int3D.WithIndex> getAllMutable() {
 		return new Iterable<Int3D.WithIndex>() {
 			@Override
@@ -220,5 +255,172 @@ public class Int3DRange {
 		return this.resize(minX, minY, minZ, maxX, maxY, maxZ);
 	}
 
+	public Floats createFloats() {
+		return new Floats(this);
+	}
+
+	public Bits createBits() {
+		return new Bits(this);
+	}
+	
+	
+	public static class Floats extends Int3DRange {
+		
+		public static void copyRange(Floats src, Floats dest, int dstStartX, int dstStartY, int dstStartZ) {
+			int minX = Math.max(src.minX, dest.minX-dstStartX);
+			int minY = Math.max(src.minY, dest.minY-dstStartY);
+			int minZ = Math.max(src.minZ, dest.minZ-dstStartZ);
+			int maxX = Math.min(src.maxX, dest.maxX-dstStartX);
+			int maxY = Math.min(src.maxY, dest.maxY-dstStartY);
+			int maxZ = Math.min(src.maxZ, dest.maxZ-dstStartZ);
+			for (int z = minZ; z <= maxZ; z++) {
+				for (int x = minX; x <= maxX; x++) {
+					for (int y = minY; y <= maxY; y++) {
+						dest.set(x+dstStartX, y+dstStartY, z+dstStartZ, src.get(x, y, z));
+					}
+				}	
+			}
+		}
+		
+		public final float[] data;
+		
+		public Floats(Int3DRange range) {
+			this(range.minX, range.minY, range.minZ, range.maxX, range.maxY, range.maxZ);
+		}
+		
+		public Floats(Int3D start, Int3D end) {
+			this(start.x(), start.y(), start.z(), end.x(), end.y(), end.z());
+		}
+		
+		public Floats(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+			super(minX, minY, minZ, maxX, maxY, maxZ);
+			this.data = new float[size()];
+		}
+		
+		@Override
+		public Floats resize(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+			Floats result = new Floats(minX, minY, minZ, maxX, maxY, maxZ);
+			copyRange(this, result, 0, 0, 0);
+			return result;
+		}
+		
+		public float get(int index) {
+			return data[index];
+		}
+		
+		public void set(int index, float value) {
+			data[index] = value;
+		}
+		
+		public float get(int x, int y, int z) {
+			return data[indexFor(x, y, z)];
+		}
+		
+		public void set(int x, int y, int z, float value) {
+			data[indexFor(x, y, z)] = value;
+		}
+
+		public Int3DRange asRange() {
+			return new Int3DRange(this);
+		}
+
+		public float getSafe(int x, int y, int z, float defaultValue) {
+			if (!this.contains(x, y, z)) return defaultValue;
+			return this.get(x, y, z);
+		}
+
+		public int count(Int2DRange.FloatPredicate predicate) {
+			int count = 0;
+			for (int i = 0; i < data.length; i++) {
+				if (predicate.test(data[i])) count++;
+			}
+			return count;
+		}
+		
+	}
+	
+	
+	
+	
+	
+	public static class Bits extends Int3DRange {
+		
+		public static void copyRange(Bits src, Bits dest, int dstStartX, int dstStartY, int dstStartZ) {
+			int minX = Math.max(src.minX, dest.minX-dstStartX);
+			int minY = Math.max(src.minY, dest.minY-dstStartY);
+			int minZ = Math.max(src.minZ, dest.minZ-dstStartZ);
+			int maxX = Math.min(src.maxX, dest.maxX-dstStartX);
+			int maxY = Math.min(src.maxY, dest.maxY-dstStartY);
+			int maxZ = Math.min(src.maxZ, dest.maxZ-dstStartZ);
+			for (int z = minZ; z <= maxZ; z++) {
+				for (int x = minX; x <= maxX; x++) {
+					for (int y = minY; y <= maxY; y++) {
+						dest.set(x+dstStartX, y+dstStartY, z+dstStartZ, src.get(x, y, z));
+					}
+				}	
+			}
+		}
+		
+		public final long[] data;
+		
+		public Bits(Int3DRange range) {
+			this(range.minX, range.minY, range.minZ, range.maxX, range.maxY, range.maxZ);
+		}
+		
+		public Bits(Int3D start, Int3D end) {
+			this(start.x(), start.y(), start.z(), end.x(), end.y(), end.z());
+		}
+		
+		public Bits(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+			super(minX, minY, minZ, maxX, maxY, maxZ);
+			this.data = new long[(size() + 63) >>> 6];
+		}
+		
+		@Override
+		public Bits resize(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+			Bits result = new Bits(minX, minY, minZ, maxX, maxY, maxZ);
+			copyRange(this, result, 0, 0, 0);
+			return result;
+		}
+		
+		public boolean get(int index) {
+			return (data[index >>> 6] & (1L << index)) != 0;
+		}
+		
+		public void set(int index, boolean value) {
+			int slot = index >>> 6;
+			long mask = (1L << index);
+			data[slot] = (data[slot] & ~mask) | (value ? mask : 0);
+		}
+		
+		public boolean get(int x, int y, int z) {
+			return get(indexFor(x, y, z));
+		}
+		
+		public void set(int x, int y, int z, boolean value) {
+			set(indexFor(x, y, z), value);
+		}
+
+		public Int3DRange asRange() {
+			return new Int3DRange(this);
+		}
+
+		public boolean getSafe(int x, int y, int z, boolean defaultValue) {
+			if (!this.contains(x, y, z)) return defaultValue;
+			return this.get(x, y, z);
+		}
+
+		/**
+		 * @return the number of set tiles
+		 */
+		public int cardinality() {
+			int count = 0;
+			for (int i = 0; i < data.length; i++) {
+				count += Long.bitCount(data[i]);
+			}
+			return count;
+		}
+		
+	}
 	
 }
@@ -0,0 +1,311 @@
+package com.gpergrossi.util.geom.ranges;
+
+import java.util.Arrays;
+
+import com.gpergrossi.util.data.LongHashMap;
+import com.gpergrossi.util.geom.vectors.Int2D;
+
+/**
+ * An unbounded raster stored as a sparse set of fixed size square tiles. Tiles are
+ * only created when written to, so memory scales with the area that has been touched
+ * rather than with the bounds of the world. When more than maxTiles tiles are held,
+ * the least recently used tile is handed to the spill handler (if any) and dropped.
+ * A tile loader may be set to bring spilled tiles back when they are next accessed.
+ * Reading a tile the loader does not have still returns the default value without creating it.
+ * <br/><br/>
+ * Not thread safe.
+ *
+ * @param <T> the type of tile storage
+ */
+public abstract class TiledRaster<T extends Int2DRange> {
+
+	public static interface SpillHandler<T> {
+		public void spill(int tileX, int tileY, T tile);
+	}
+
+	public static interface TileLoader<T> {
+		/**
+		 * Called before a tile is created to be read into, so this should be cheap.
+		 * @return true if load() may have data for this tile
+		 */
+		public boolean hasTile(int tileX, int tileY);
+
+		/**
+		 * Fills the freshly created tile with previously spilled data.
+		 * @return false if there was no data for this tile
+		 */
+		public boolean load(int tileX, int tileY, T tile);
+	}
+
+	private static final class Tile<T> {
+		final long key;
+		final int tileX, tileY;
+		final T data;
+		Tile<T> newer, older;
+
+		Tile(int tileX, int tileY, T data) {
+			this.key = Int2D.pack(tileX, tileY);
+			this.tileX = tileX;
+			this.tileY = tileY;
+			this.data = data;
+		}
+	}
+
+	public final int tileShift;
+	public final int tileSize;
+
+	private final LongHashMap<Tile<T>> tiles;
+	private Tile<T> newest, oldest;
+	private int maxTiles;
+
+	private SpillHandler<T> spillHandler;
+	private TileLoader<T> tileLoader;
+
+	/**
+	 * @param tileShift - tiles are (1 << tileShift) tiles wide and tall
+	 * @param maxTiles - maximum number of tiles held before the least recently used one is spilled
+	 */
+	public TiledRaster(int tileShift, int maxTiles) {
+		if (tileShift < 0 || tileShift > 15) throw new IllegalArgumentException("tileShift must be in [0, 15]");
+		if (maxTiles < 1) throw new IllegalArgumentException("maxTiles must be at least 1");
+		this.tileShift = tileShift;
+		this.tileSize = 1 << tileShift;
+		this.maxTiles = maxTiles;
+		this.tiles = new LongHashMap<>(Math.min(maxTiles, 1024));
+	}
+
+	protected abstract T createTile(int minX, int minY, int maxX, int maxY);
+
+	public void setSpillHandler(SpillHandler<T> spillHandler) {
+		this.spillHandler = spillHandler;
+	}
+
+	public void setTileLoader(TileLoader<T> tileLoader) {
+		this.tileLoader = tileLoader;
+	}
+
+	public int getMaxTiles() {
+		return maxTiles;
+	}
+
+	public void setMaxTiles(int maxTiles) {
+		if (maxTiles < 1) throw new IllegalArgumentException("maxTiles must be at least 1");
+		this.maxTiles = maxTiles;
+		while (tiles.size() > maxTiles) evict(oldest);
+	}
+
+	/**
+	 * @return the number of tiles currently held in memory
+	 */
+	public int getNumTiles() {
+		return tiles.size();
+	}
+
+	public int tileCoord(int coord) {
+		return coord >> tileShift;
+	}
+
+	/**
+	 * Returns the tile containing the given tile coordinates, loading it if there is a tile loader.
+	 * If the tile does not exist and create is false, null is returned without creating a tile.
+	 */
+	protected T getTile(int tileX, int tileY, boolean create) {
+		final long key = Int2D.pack(tileX, tileY);
+		Tile<T> tile = tiles.get(key);
+		if (tile != null) {
+			touch(tile);
+			return tile.data;
+		}
+		if (!create && (tileLoader == null || !tileLoader.hasTile(tileX, tileY))) return null;
+
+		final int minX = tileX << tileShift;
+		final int minY = tileY << tileShift;
+		T data = createTile(minX, minY, minX + tileSize - 1, minY + tileSize - 1);
+		boolean loaded = (tileLoader != null) && tileLoader.load(tileX, tileY, data);
+		if (!loaded && !create) return null;
+
+		tile = new Tile<>(tileX, tileY, data);
+		tiles.put(key, tile);
+		link(tile);
+		if (tiles.size() > maxTiles) evict(oldest);
+		return data;
+	}
+
+	/**
+	 * Spills every tile to the spill handler without dropping them
+	 */
+	public void flush() {
+		if (spillHandler == null) return;
+		for (Tile<T> tile = oldest; tile != null; tile = tile.newer) {
+			spillHandler.spill(tile.tileX, tile.tileY, tile.data);
+		}
+	}
+
+	/**
+	 * Drops all tiles without spilling them
+	 */
+	public void clear() {
+		tiles.clear();
+		newest = oldest = null;
+	}
+
+	private void evict(Tile<T> tile) {
+		unlink(tile);
+		tiles.remove(tile.key);
+		if (spillHandler != null) spillHandler.spill(tile.tileX, tile.tileY, tile.data);
+	}
+
+	private void touch(Tile<T> tile) {
+		if (tile == newest) return;
+		unlink(tile);
+		link(tile);
+	}
+
+	private void link(Tile<T> tile) {
+		tile.older = newest;
+		tile.newer = null;
+		if (newest != null) newest.newer = tile;
+		newest = tile;
+		if (oldest == null) oldest = tile;
+	}
+
+	private void unlink(Tile<T> tile) {
+		if (tile.older != null) tile.older.newer = tile.newer;
+		else oldest = tile.newer;
+		if (tile.newer != null) tile.newer.older = tile.older;
+		else newest = tile.older;
+		tile.newer = tile.older = null;
+	}
+
+
+
+
+
+	public static class Floats extends TiledRaster<Int2DRange.Floats> {
+
+		public final float defaultValue;
+
+		public Floats(int tileShift, int maxTiles) {
+			this(tileShift, maxTiles, 0);
+		}
+
+		/**
+		 * @param defaultValue - the value of every tile that has never been written
+		 */
+		public Floats(int tileShift, int maxTiles, float defaultValue) {
+			super(tileShift, maxTiles);
+			this.defaultValue = defaultValue;
+		}
+
+		@Override
+		protected Int2DRange.Floats createTile(int minX, int minY, int maxX, int maxY) {
+			Int2DRange.Floats tile = new Int2DRange.Floats(minX, minY, maxX, maxY);
+			if (defaultValue != 0) Arrays.fill(tile.data, defaultValue);
+			return tile;
+		}
+
+		public float get(int x, int y) {
+			Int2DRange.Floats tile = getTile(tileCoord(x), tileCoord(y), false);
+			if (tile == null) return defaultValue;
+			return tile.get(x, y);
+		}
+
+		public void set(int x, int y, float value) {
+			getTile(tileCoord(x), tileCoord(y), true).set(x, y, value);
+		}
+
+		/**
+		 * Copies the values of every tile in dest's range into dest, a row of a tile at a time
+		 */
+		public void read(Int2DRange.Floats dest) {
+			for (int tileY = tileCoord(dest.minY); tileY <= tileCoord(dest.maxY); tileY++) {
+				for (int tileX = tileCoord(dest.minX); tileX <= tileCoord(dest.maxX); tileX++) {
+					Int2DRange.Floats tile = getTile(tileX, tileY, false);
+					if (tile != null) {
+						Int2DRange.Floats.copyRange(tile, dest, 0, 0);
+						continue;
+					}
+
+					int minX = Math.max(tileX << tileShift, dest.minX);
+					int maxX = Math.min((tileX << tileShift) + tileSize - 1, dest.maxX);
+					int minY = Math.max(tileY << tileShift, dest.minY);
+					int maxY = Math.min((tileY << tileShift) + tileSize - 1, dest.maxY);
+					for (int y = minY; y <= maxY; y++) {
+						int index = dest.indexFor(minX, y);
+						Arrays.fill(dest.data, index, index + (maxX - minX + 1), defaultValue);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Copies every value of src into the tiles covering its range, a row of a tile at a time
+		 */
+		public void write(Int2DRange.Floats src) {
+			for (int tileY = tileCoord(src.minY); tileY <= tileCoord(src.maxY); tileY++) {
+				for (int tileX = tileCoord(src.minX); tileX <= tileCoord(src.maxX); tileX++) {
+					Int2DRange.Floats.copyRange(src, getTile(tileX, tileY, true), 0, 0);
+				}
+			}
+		}
+
+	}
+
+
+
+
+
+	public static class Bits extends TiledRaster<Int2DRange.Bits> {
+
+		public Bits(int tileShift, int maxTiles) {
+			super(tileShift, maxTiles);
+		}
+
+		@Override
+		protected Int2DRange.Bits createTile(int minX, int minY, int maxX, int maxY) {
+			return new Int2DRange.Bits(minX, minY, maxX, maxY);
+		}
+
+		public boolean get(int x, int y) {
+			Int2DRange.Bits tile = getTile(tileCoord(x), tileCoord(y), false);
+			if (tile == null) return false;
+			return tile.get(x, y);
+		}
+
+		public void set(int x, int y, boolean value) {
+			Int2DRange.Bits tile = getTile(tileCoord(x), tileCoord(y), value);
+			if (tile != null) tile.set(x, y, value);
+		}
+
+		/**
+		 * Copies the bits of every tile in dest's range into dest, up to 64 bits at a time
+		 */
+		public void read(Int2DRange.Bits dest) {
+			for (int tileY = tileCoord(dest.minY); tileY <= tileCoord(dest.maxY); tileY++) {
+				for (int tileX = tileCoord(dest.minX); tileX <= tileCoord(dest.maxX); tileX++) {
+					Int2DRange.Bits tile = getTile(tileX, tileY, false);
+					if (tile != null) {
+						Int2DRange.Bits.copyRange(tile, dest, 0, 0);
+					} else {
+						int minX = tileX << tileShift;
+						int minY = tileY << tileShift;
+						dest.fill(minX, minY, minX + tileSize - 1, minY + tileSize - 1, false);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Copies every bit of src into the tiles covering its range, up to 64 bits at a time
+		 */
+		public void write(Int2DRange.Bits src) {
+			for (int tileY = tileCoord(src.minY); tileY <= tileCoord(src.maxY); tileY++) {
+				for (int tileX = tileCoord(src.minX); tileX <= tileCoord(src.maxX); tileX++) {
+					Int2DRange.Bits.copyRange(src, getTile(tileX, tileY, true), 0, 0);
+				}
+			}
+		}
+
+	}
+
+}
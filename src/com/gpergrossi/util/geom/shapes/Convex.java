@@ -317,6 +317,35 @@ public class Convex extends Polygon {
 		return false;
 	}
 	
+	/**
+	 * Tests for intersection with an axis aligned box without allocating. Touching counts as intersecting.
+	 */
+	public boolean intersects(double minX, double minY, double maxX, double maxY) {
+		double polyMinX = Double.POSITIVE_INFINITY, polyMinY = Double.POSITIVE_INFINITY;
+		double polyMaxX = Double.NEGATIVE_INFINITY, polyMaxY = Double.NEGATIVE_INFINITY;
+		for (Double2D vert : vertices) {
+			polyMinX = Math.min(polyMinX, vert.x());
+			polyMinY = Math.min(polyMinY, vert.y());
+			polyMaxX = Math.max(polyMaxX, vert.x());
+			polyMaxY = Math.max(polyMaxY, vert.y());
+		}
+		if (polyMaxX < minX || polyMinX > maxX || polyMaxY < minY || polyMinY > maxY) return false;
+		
+		// The box is separated if all four corners are outside of any one edge
+		for (int i = 0; i < vertices.length; i++) {
+			Double2D pt0 = vertices[i];
+			Double2D pt1 = vertices[(i+1 == vertices.length) ? 0 : i+1];
+			double dx = pt1.x() - pt0.x();
+			double dy = pt1.y() - pt0.y();
+			if (Double2D.cross(dx, dy, minX - pt0.x(), minY - pt0.y()) >= 0) continue;
+			if (Double2D.cross(dx, dy, maxX - pt0.x(), minY - pt0.y()) >= 0) continue;
+			if (Double2D.cross(dx, dy, minX - pt0.x(), maxY - pt0.y()) >= 0) continue;
+			if (Double2D.cross(dx, dy, maxX - pt0.x(), maxY - pt0.y()) >= 0) continue;
+			return false;
+		}
+		return true;
+	}
+	
 	public boolean intersects(Convex poly) {
 		// Rectangle inside polygon
 		if (this.contains(poly.getCentroid())) return true;
@@ -18,6 +18,21 @@ public class Int2D implements IVector2D<Int2D> {
 		this.y = y;
 	}
 	
+	/**
+	 * Packs a coordinate pair into a single long, e.g. for use as a LongHashMap key
+	 */
+	public static long pack(int x, int y) {
+		return ((long) x << 32) | (y & 0xFFFFFFFFL);
+	}
+	
+	public static int unpackX(long packed) {
+		return (int) (packed >> 32);
+	}
+	
+	public static int unpackY(long packed) {
+		return (int) packed;
+	}
+	
 	public int x() {
 		return x;
 	}
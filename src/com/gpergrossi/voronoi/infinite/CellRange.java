@@ -0,0 +1,72 @@
+package com.gpergrossi.voronoi.infinite;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+
+import com.gpergrossi.util.geom.ranges.Int2DRange;
+
+/**
+ * The reserved, initialized cells intersecting a range (see InfiniteVoronoi.getCellRange()),
+ * in row major order of their cell coordinates. Each cell is held once and the whole
+ * range is given back with release(), or handed on to the next query for the same viewer.
+ */
+public final class CellRange implements Iterable<InfiniteCell> {
+
+	public final Int2DRange range;
+
+	private final InfiniteCell[] cells;
+	private final boolean[] newlyReserved;
+	private boolean released;
+
+	CellRange(Int2DRange range, InfiniteCell[] cells, boolean[] newlyReserved) {
+		this.range = range;
+		this.cells = cells;
+		this.newlyReserved = newlyReserved;
+	}
+
+	public int size() {
+		return cells.length;
+	}
+
+	public InfiniteCell get(int index) {
+		return cells[index];
+	}
+
+	/**
+	 * @return true if the cell at this index was not part of the previous range this one was built from
+	 */
+	public boolean isNewlyReserved(int index) {
+		return newlyReserved[index];
+	}
+
+	/**
+	 * @return false once this range has been released or handed on to a newer range
+	 */
+	public boolean isReserved() {
+		return !released;
+	}
+
+	/**
+	 * Releases every cell of this range
+	 */
+	public void release() {
+		if (released) throw new IllegalStateException("CellRange already released");
+		released = true;
+		for (InfiniteCell cell : cells) cell.release();
+	}
+
+	/**
+	 * Marks this range as handed on without releasing its cells
+	 */
+	void transfer() {
+		if (released) throw new IllegalStateException("CellRange already released");
+		released = true;
+	}
+
+	@Override
+	public Iterator<InfiniteCell> iterator() {
+		return Collections.unmodifiableList(Arrays.asList(cells)).iterator();
+	}
+
+}
@@ -0,0 +1,126 @@
+package com.gpergrossi.voronoi.infinite;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps cells whose reference count has dropped to zero in the cell cache, with their
+ * polygons and neighbors, so that reserving them again does not rebuild anything.
+ * Retained cells are deleted oldest first once there are more than maxCells of them,
+ * once their estimated size passes maxBytes, or once they have been unreferenced for
+ * longer than the time to live. A retained cell that is reserved again leaves the list.
+ */
+class CellRetention {
+
+	final InfiniteVoronoi container;
+
+	private volatile int maxCells;
+	private long maxBytes;
+	private long ttlNanos;	// 0 for no time limit
+
+	private final Map<InfiniteCell, InfiniteCell> retained;	// Oldest first (Use lock on retained)
+	private long retainedBytes;
+
+	CellRetention(InfiniteVoronoi container, int maxCells, long maxBytes, long ttlMillis) {
+		this.container = container;
+		this.retained = new LinkedHashMap<>();
+		setPolicy(maxCells, maxBytes, ttlMillis);
+	}
+
+	void setPolicy(int maxCells, long maxBytes, long ttlMillis) {
+		if (maxCells < 0) throw new IllegalArgumentException("maxCells must not be negative");
+		if (maxBytes < 0) throw new IllegalArgumentException("maxBytes must not be negative");
+		if (ttlMillis < 0) throw new IllegalArgumentException("ttlMillis must not be negative");
+		synchronized (retained) {
+			this.maxCells = maxCells;
+			this.maxBytes = maxBytes;
+			this.ttlNanos = ttlMillis * 1000000L;
+			trimLocked(System.nanoTime());
+		}
+	}
+
+	boolean isEnabled() {
+		return maxCells > 0;
+	}
+
+	/**
+	 * Called when the cell's reference count reaches zero. The cell becomes the newest retained cell.
+	 * A reservation can slip in between the count reaching zero and this call. revive() then runs
+	 * before or after this method under the same lock, and either way the live cell is not left
+	 * in the list.
+	 */
+	void retain(InfiniteCell cell) {
+		synchronized (retained) {
+			if (cell.refCount.get() != 0) return;
+			if (retained.remove(cell) != null) retainedBytes -= cell.retainedBytes;
+			cell.retainedAt = System.nanoTime();
+			cell.retainedBytes = cell.getMemoryEstimate();
+			retained.put(cell, cell);
+			retainedBytes += cell.retainedBytes;
+			trimLocked(cell.retainedAt);
+		}
+	}
+
+	/**
+	 * Called by InfiniteCell.tryReserve() when a cell's reference count goes from zero back to one
+	 */
+	void revive(InfiniteCell cell) {
+		synchronized (retained) {
+			if (retained.remove(cell) != null) retainedBytes -= cell.retainedBytes;
+		}
+	}
+
+	/**
+	 * Deletes any retained cells that have outlived the time to live
+	 */
+	void trim() {
+		if (ttlNanos == 0) return;
+		synchronized (retained) {
+			trimLocked(System.nanoTime());
+		}
+	}
+
+	void clear() {
+		synchronized (retained) {
+			Iterator<InfiniteCell> iterator = retained.keySet().iterator();
+			while (iterator.hasNext()) {
+				evict(iterator.next());
+				iterator.remove();
+			}
+			retainedBytes = 0;
+		}
+	}
+
+	int size() {
+		synchronized (retained) {
+			return retained.size();
+		}
+	}
+
+	long getRetainedBytes() {
+		synchronized (retained) {
+			return retainedBytes;
+		}
+	}
+
+	private void trimLocked(long now) {
+		Iterator<InfiniteCell> iterator = retained.keySet().iterator();
+		while (iterator.hasNext()) {
+			InfiniteCell oldest = iterator.next();
+			boolean expired = (ttlNanos > 0 && now - oldest.retainedAt > ttlNanos);
+			if (retained.size() <= maxCells && retainedBytes <= maxBytes && !expired) break;
+			iterator.remove();
+			retainedBytes -= oldest.retainedBytes;
+			evict(oldest);
+		}
+	}
+
+	/**
+	 * Deletes the cell unless it has been reserved again since it was retained
+	 */
+	private void evict(InfiniteCell cell) {
+		if (cell.refCount.compareAndSet(0, -1)) cell.delete();
+	}
+
+}
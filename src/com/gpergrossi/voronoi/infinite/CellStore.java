@@ -0,0 +1,155 @@
+package com.gpergrossi.voronoi.infinite;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import com.gpergrossi.util.geom.shapes.Convex;
+import com.gpergrossi.util.geom.vectors.Double2D;
+import com.gpergrossi.util.geom.vectors.Int2D;
+
+/**
+ * Stores the polygons and neighbors of built regions (see RegionCache) in one file per region,
+ * so that a restarted InfiniteVoronoi with the same seed and gridSize can read its regions back
+ * instead of rebuilding their diagrams. Each seed and gridSize gets its own subdirectory.
+ * <br/><br/>
+ * Files are written to a temporary file and moved into place, and carry a checksum of their
+ * contents. A file that is missing, truncated, corrupt or for a different seed, gridSize or
+ * region size is ignored and the region is rebuilt (and rewritten) as if there were no file.
+ * Files are read through a memory mapped buffer.
+ */
+public class CellStore {
+
+	private static final int MAGIC = 0x49565247;	// "IVRG"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 4 + 4 + 4 + 4 + 8;
+
+	public final File directory;
+
+	public CellStore(File directory) {
+		this.directory = directory;
+	}
+
+	File getDirectory(InfiniteVoronoi container) {
+		String name = Long.toHexString(container.seed) + "_" + Long.toHexString(Double.doubleToLongBits(container.gridSize));
+		return new File(directory, name);
+	}
+
+	File getFile(InfiniteVoronoi container, int regionX, int regionY, int regionSize) {
+		return new File(getDirectory(container), "r."+regionX+"."+regionY+"."+regionSize+".cells");
+	}
+
+	/**
+	 * Fills polygons and neighbors (regionSize * regionSize entries, row major) from the region's file.
+	 * @return false if there is no usable file for this region, in which case the arrays may be partially filled
+	 */
+	boolean read(InfiniteVoronoi container, int regionX, int regionY, int regionSize, Convex[] polygons, Int2D[][] neighbors) {
+		File file = getFile(container, regionX, regionY, regionSize);
+		if (!file.isFile()) return false;
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < HEADER_BYTES || size > Integer.MAX_VALUE) return false;
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+			if (buffer.getInt() != MAGIC) return false;
+			if (buffer.getInt() != VERSION) return false;
+			if (buffer.getLong() != container.seed) return false;
+			if (buffer.getDouble() != container.gridSize) return false;
+			if (buffer.getInt() != regionX) return false;
+			if (buffer.getInt() != regionY) return false;
+			if (buffer.getInt() != regionSize) return false;
+			int payloadBytes = buffer.getInt();
+			long checksum = buffer.getLong();
+			if (payloadBytes != size - HEADER_BYTES) return false;
+
+			CRC32 crc = new CRC32();
+			crc.update(buffer.duplicate());
+			if (crc.getValue() != checksum) return false;
+
+			final int minCellX = regionX * regionSize;
+			final int minCellY = regionY * regionSize;
+			for (int index = 0; index < regionSize * regionSize; index++) {
+				Double2D[] verts = new Double2D[buffer.getInt()];
+				for (int v = 0; v < verts.length; v++) {
+					verts[v] = new Double2D(buffer.getDouble(), buffer.getDouble());
+				}
+				polygons[index] = Convex.createDirect(verts);
+
+				Int2D[] cellNeighbors = new Int2D[buffer.getInt()];
+				for (int n = 0; n < cellNeighbors.length; n++) {
+					cellNeighbors[n] = new Int2D(minCellX + buffer.getInt(), minCellY + buffer.getInt());
+				}
+				neighbors[index] = cellNeighbors;
+			}
+			return !buffer.hasRemaining();
+		} catch (IOException | BufferUnderflowException | NegativeArraySizeException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the region's polygons and neighbors to its file, replacing any previous file
+	 */
+	void write(InfiniteVoronoi container, int regionX, int regionY, int regionSize, Convex[] polygons, Int2D[][] neighbors) throws IOException {
+		int payloadBytes = 0;
+		for (int index = 0; index < regionSize * regionSize; index++) {
+			payloadBytes += 4 + polygons[index].getNumVertices() * 16;
+			payloadBytes += 4 + neighbors[index].length * 8;
+		}
+
+		final int minCellX = regionX * regionSize;
+		final int minCellY = regionY * regionSize;
+		ByteBuffer payload = ByteBuffer.allocate(payloadBytes);
+		for (int index = 0; index < regionSize * regionSize; index++) {
+			Convex polygon = polygons[index];
+			payload.putInt(polygon.getNumVertices());
+			for (int v = 0; v < polygon.getNumVertices(); v++) {
+				Double2D vert = polygon.getVertex(v);
+				payload.putDouble(vert.x()).putDouble(vert.y());
+			}
+			payload.putInt(neighbors[index].length);
+			for (Int2D neighbor : neighbors[index]) {
+				payload.putInt(neighbor.x() - minCellX).putInt(neighbor.y() - minCellY);
+			}
+		}
+		payload.flip();
+
+		CRC32 crc = new CRC32();
+		crc.update(payload.duplicate());
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		header.putInt(MAGIC).putInt(VERSION).putLong(container.seed).putDouble(container.gridSize);
+		header.putInt(regionX).putInt(regionY).putInt(regionSize).putInt(payloadBytes).putLong(crc.getValue());
+		header.flip();
+
+		File file = getFile(container, regionX, regionY, regionSize);
+		Path target = file.toPath();
+		Files.createDirectories(target.getParent());
+		Path temp = Files.createTempFile(target.getParent(), file.getName(), ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				while (header.hasRemaining()) channel.write(header);
+				while (payload.hasRemaining()) channel.write(payload);
+				channel.force(false);
+			}
+			try {
+				Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+}
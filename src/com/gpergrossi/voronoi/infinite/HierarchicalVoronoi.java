@@ -0,0 +1,349 @@
+package com.gpergrossi.voronoi.infinite;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.gpergrossi.util.geom.shapes.Convex;
+import com.gpergrossi.util.geom.shapes.Rect;
+import com.gpergrossi.util.geom.vectors.Double2D;
+import com.gpergrossi.util.geom.vectors.Int2D;
+
+/**
+ * Several levels of infinite voronoi cells, coarsest first, where every cell of a finer level lies
+ * inside one cell of the level above it. Each level's gridSize divides the previous one's by a whole
+ * number (the branching), and each level has its own seed derived from the hierarchy's seed.
+ * <br/><br/>
+ * A fine cell's parent is the coarse cell containing its site, and a point belongs to the closest
+ * fine site among the children of the point's own coarse cell. Children are generated inside their
+ * parent: one fine grid square in every coarse grid square (the host) takes the coarse cell's site
+ * as its own, so every coarse cell has at least one child. The other fine sites are placed as usual.
+ * <br/><br/>
+ * Cell keys at any level are found from site positions alone, no diagram is built. A query
+ * at level k only ever looks at levels 0 through k, so zoomed out views never touch finer levels.
+ * Level 0 cells are the cells of getTopLevel(). Finer cells are clipped to their parents,
+ * so their polygons come from getPolygon() instead. Parent keys and polygons of finer levels
+ * are kept in least recently used caches shared by all levels.
+ */
+public class HierarchicalVoronoi {
+
+	private static final int BLOCK_BITS = 3;
+	private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+	private static final int MAX_PARENT_BLOCKS = 4096;
+	private static final int MAX_POLYGONS = 4096;
+
+	/**
+	 * Cache key for a cell or block of cells at one level
+	 */
+	private static final class LevelKey {
+		final int level;
+		final long key;
+
+		LevelKey(int level, long key) {
+			this.level = level;
+			this.key = key;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof LevelKey)) return false;
+			LevelKey other = (LevelKey) obj;
+			return level == other.level && key == other.key;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) InfiniteVoronoi.mix(key + level);
+		}
+	}
+
+	/**
+	 * Parent keys of a BLOCK_SIZE x BLOCK_SIZE block of cells, filled in as they are found
+	 */
+	private static final class ParentBlock {
+		final long[] parentKeys = new long[BLOCK_SIZE * BLOCK_SIZE];
+		long known;		// Bit i is set once parentKeys[i] is filled in (Use lock on this block)
+	}
+
+	public final long seed;
+
+	private final InfiniteVoronoi[] levels;
+	private final int[] branching;		// per level, how many of its grid squares fit across one of the previous level's
+
+	private final Map<LevelKey, ParentBlock> parentBlocks;	// Access ordered (Use lock on parentBlocks)
+	private final Map<LevelKey, Convex> polygons;			// Access ordered (Use lock on polygons)
+
+	/**
+	 * @param seed
+	 * @param coarseGridSize - gridSize of level 0
+	 * @param branching - each level's gridSize is the previous level's divided by branching
+	 * @param numLevels
+	 */
+	public HierarchicalVoronoi(long seed, double coarseGridSize, int branching, int numLevels) {
+		this(seed, gridSizes(coarseGridSize, branching, numLevels));
+	}
+
+	private static double[] gridSizes(double coarseGridSize, int branching, int numLevels) {
+		if (branching < 2) throw new IllegalArgumentException("branching must be at least 2");
+		double[] gridSizes = new double[numLevels];
+		for (int level = 0; level < numLevels; level++) {
+			gridSizes[level] = coarseGridSize / Math.pow(branching, level);
+		}
+		return gridSizes;
+	}
+
+	/**
+	 * @param seed
+	 * @param gridSizes - gridSize of each level, each one the previous divided by a whole number of at least 2
+	 */
+	public HierarchicalVoronoi(long seed, double... gridSizes) {
+		if (gridSizes.length < 1) throw new IllegalArgumentException("At least one level is needed");
+		this.seed = seed;
+		this.levels = new InfiniteVoronoi[gridSizes.length];
+		this.branching = new int[gridSizes.length];
+		for (int level = 0; level < gridSizes.length; level++) {
+			if (level > 0) {
+				double ratio = gridSizes[level-1] / gridSizes[level];
+				long rounded = Math.round(ratio);
+				if (rounded < 2 || rounded > Integer.MAX_VALUE || Math.abs(ratio - rounded) > 1e-9 * ratio) {
+					throw new IllegalArgumentException("Each gridSize must be the previous one divided by a whole number of at least 2");
+				}
+				branching[level] = (int) rounded;
+			}
+			long levelSeed = InfiniteVoronoi.mix(seed + level * 0x9E3779B97F4A7C15L);
+			levels[level] = new InfiniteVoronoi(gridSizes[level], levelSeed);
+		}
+		this.parentBlocks = new LinkedHashMap<>(MAX_PARENT_BLOCKS*2, 0.75f, true);
+		this.polygons = new LinkedHashMap<>(MAX_POLYGONS*2, 0.75f, true);
+	}
+
+	public int getNumLevels() {
+		return levels.length;
+	}
+
+	public double getGridSize(int level) {
+		return levels[level].gridSize;
+	}
+
+	/**
+	 * The level 0 InfiniteVoronoi, whose cells are exactly the level 0 cells of this hierarchy
+	 */
+	public InfiniteVoronoi getTopLevel() {
+		return levels[0];
+	}
+
+	/**
+	 * Returns the key (see Int2D.pack()) of the cell at the given level containing the point.
+	 */
+	public long getCellKey(int level, double x, double y) {
+		if (level == 0) return levels[0].getCellKey(x, y);
+		return getChildKey(level, x, y, getCellKey(level-1, x, y));
+	}
+
+	/**
+	 * Returns the keys of the cells containing the point at every level, coarsest first
+	 */
+	public long[] getCellKeys(double x, double y) {
+		long[] keys = new long[levels.length];
+		keys[0] = levels[0].getCellKey(x, y);
+		for (int level = 1; level < levels.length; level++) {
+			keys[level] = getChildKey(level, x, y, keys[level-1]);
+		}
+		return keys;
+	}
+
+	/**
+	 * World position of a cell's site. At levels below 0 the host of each coarse
+	 * grid square has its parent's site, the other cells have their usual sites.
+	 */
+	public Double2D getSite(int level, int cellX, int cellY) {
+		if (level > 0) {
+			final int parentX = Math.floorDiv(cellX, branching[level]);
+			final int parentY = Math.floorDiv(cellY, branching[level]);
+			final Double2D parentSite = getSite(level-1, parentX, parentY);
+			if (getHostKey(level, parentX, parentY, parentSite) == Int2D.pack(cellX, cellY)) return parentSite;
+		}
+		final InfiniteVoronoi grid = levels[level];
+		return new Double2D(grid.siteX(cellX, cellY), grid.siteY(cellX, cellY));
+	}
+
+	/**
+	 * Returns the key of the cell at the given level that takes the site of the cell
+	 * (parentX, parentY) at level-1. It is the grid square containing that site, clamped
+	 * to the squares covered by the parent's grid square.
+	 */
+	private long getHostKey(int level, int parentX, int parentY, Double2D parentSite) {
+		final double gridSize = levels[level].gridSize;
+		final int b = branching[level];
+		int hostX = (int) Math.floor(parentSite.x() / gridSize);
+		int hostY = (int) Math.floor(parentSite.y() / gridSize);
+		hostX = Math.min(Math.max(hostX, parentX * b), parentX * b + b - 1);
+		hostY = Math.min(Math.max(hostY, parentY * b), parentY * b + b - 1);
+		return Int2D.pack(hostX, hostY);
+	}
+
+	private long getHostKey(int level, int parentX, int parentY) {
+		return getHostKey(level, parentX, parentY, getSite(level-1, parentX, parentY));
+	}
+
+	private boolean isHost(int level, int cellX, int cellY) {
+		final int parentX = Math.floorDiv(cellX, branching[level]);
+		final int parentY = Math.floorDiv(cellY, branching[level]);
+		return getHostKey(level, parentX, parentY) == Int2D.pack(cellX, cellY);
+	}
+
+	/**
+	 * Finds the closest site at the given level among the children of parentKey
+	 */
+	private long getChildKey(int level, double x, double y, long parentKey) {
+		final InfiniteVoronoi grid = levels[level];
+		final double gridSize = grid.gridSize;
+		final int cellX = (int) Math.floor(x / gridSize);
+		final int cellY = (int) Math.floor(y / gridSize);
+
+		// The parent's host is always a child, start from it
+		final Double2D hostSite = getSite(level-1, Int2D.unpackX(parentKey), Int2D.unpackY(parentKey));
+		long winner = getHostKey(level, Int2D.unpackX(parentKey), Int2D.unpackY(parentKey), hostSite);
+		double lowestDistance = Double2D.distanceSquared(hostSite.x(), hostSite.y(), x, y);
+
+		// Hosts are children of their own parents, every other site lies in its own grid square
+		for (int ring = 0; ; ring++) {
+			// Sites in this ring are at least (ring-1) grid squares away from the point
+			double bound = (ring - 1) * gridSize;
+			if (bound > 0 && bound*bound >= lowestDistance) break;
+
+			for (int iy = -ring; iy <= ring; iy++) {
+				int step = (iy == -ring || iy == ring) ? 1 : 2*ring;
+				for (int ix = -ring; ix <= ring; ix += step) {
+					int candidateX = cellX + ix, candidateY = cellY + iy;
+					double dx = grid.siteX(candidateX, candidateY) - x;
+					double dy = grid.siteY(candidateX, candidateY) - y;
+					double dist = dx*dx + dy*dy;
+					if (dist >= lowestDistance) continue;
+					if (isHost(level, candidateX, candidateY)) continue;
+					if (getParentKey(level, candidateX, candidateY) != parentKey) continue;
+					lowestDistance = dist;
+					winner = Int2D.pack(candidateX, candidateY);
+				}
+			}
+		}
+		return winner;
+	}
+
+	/**
+	 * Returns the key of the cell at level-1 that contains the site of the given cell
+	 */
+	public long getParentKey(int level, int cellX, int cellY) {
+		if (level < 1) throw new IllegalArgumentException("Level 0 cells have no parent");
+		final int parentX = Math.floorDiv(cellX, branching[level]);
+		final int parentY = Math.floorDiv(cellY, branching[level]);
+		if (isHost(level, cellX, cellY)) return Int2D.pack(parentX, parentY);
+
+		final LevelKey blockKey = new LevelKey(level, Int2D.pack(cellX >> BLOCK_BITS, cellY >> BLOCK_BITS));
+		final int index = (cellY & (BLOCK_SIZE-1)) * BLOCK_SIZE + (cellX & (BLOCK_SIZE-1));
+		ParentBlock block;
+		synchronized (parentBlocks) {
+			block = parentBlocks.get(blockKey);
+			if (block == null) {
+				block = new ParentBlock();
+				parentBlocks.put(blockKey, block);
+				trim(parentBlocks, MAX_PARENT_BLOCKS);
+			}
+		}
+		synchronized (block) {
+			if ((block.known & (1L << index)) != 0) return block.parentKeys[index];
+		}
+
+		final InfiniteVoronoi grid = levels[level];
+		long result = getCellKey(level-1, grid.siteX(cellX, cellY), grid.siteY(cellX, cellY));
+		synchronized (block) {
+			block.parentKeys[index] = result;
+			block.known |= (1L << index);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the polygon of a cell at any level. Below level 0 it is the parent's polygon
+	 * clipped to the points closer to this cell's site than to any of its siblings' sites.
+	 */
+	public Convex getPolygon(int level, int cellX, int cellY) {
+		if (level == 0) {
+			InfiniteCell cell = levels[0].getCell(cellX, cellY);
+			try {
+				return cell.getPolygon();
+			} finally {
+				cell.release();
+			}
+		}
+
+		final LevelKey key = new LevelKey(level, Int2D.pack(cellX, cellY));
+		synchronized (polygons) {
+			Convex cached = polygons.get(key);
+			if (cached != null) return cached;
+		}
+
+		final long parentKey = getParentKey(level, cellX, cellY);
+		final Convex parent = getPolygon(level-1, Int2D.unpackX(parentKey), Int2D.unpackY(parentKey));
+		final Double2D site = getSite(level, cellX, cellY);
+
+		// Siblings lie inside the parent, so their grid squares overlap its bounds (or neighbor them, for hosts)
+		final double gridSize = levels[level].gridSize;
+		final Rect bounds = parent.getBounds();
+		final int minX = (int) Math.floor(bounds.minX() / gridSize) - 1;
+		final int minY = (int) Math.floor(bounds.minY() / gridSize) - 1;
+		final int maxX = (int) Math.floor(bounds.maxX() / gridSize) + 1;
+		final int maxY = (int) Math.floor(bounds.maxY() / gridSize) + 1;
+
+		List<Double2D> verts = new ArrayList<>(parent.getNumVertices());
+		for (int i = 0; i < parent.getNumVertices(); i++) verts.add(parent.getVertex(i));
+		for (int y = minY; y <= maxY && !verts.isEmpty(); y++) {
+			for (int x = minX; x <= maxX && !verts.isEmpty(); x++) {
+				if (x == cellX && y == cellY) continue;
+				if (getParentKey(level, x, y) != parentKey) continue;
+				verts = clipCloser(verts, site, getSite(level, x, y));
+			}
+		}
+
+		Convex polygon = Convex.createDirect(verts.toArray(new Double2D[verts.size()]));
+		synchronized (polygons) {
+			polygons.put(key, polygon);
+			trim(polygons, MAX_POLYGONS);
+		}
+		return polygon;
+	}
+
+	/**
+	 * Clips a convex polygon to the points at least as close to site as to other
+	 */
+	private static List<Double2D> clipCloser(List<Double2D> verts, Double2D site, Double2D other) {
+		// Keep p where dot(p, other - site) <= (|other|^2 - |site|^2) / 2
+		final double nx = other.x() - site.x(), ny = other.y() - site.y();
+		final double limit = (other.x()*other.x() + other.y()*other.y() - site.x()*site.x() - site.y()*site.y()) * 0.5;
+
+		List<Double2D> clipped = new ArrayList<>(verts.size() + 1);
+		for (int i = 0; i < verts.size(); i++) {
+			Double2D a = verts.get(i);
+			Double2D b = verts.get((i+1) % verts.size());
+			double da = a.x()*nx + a.y()*ny - limit;
+			double db = b.x()*nx + b.y()*ny - limit;
+			if (da <= 0) clipped.add(a);
+			if ((da < 0 && db > 0) || (da > 0 && db < 0)) {
+				double t = da / (da - db);
+				clipped.add(new Double2D(a.x() + (b.x() - a.x()) * t, a.y() + (b.y() - a.y()) * t));
+			}
+		}
+		return clipped;
+	}
+
+	private static <V> void trim(Map<LevelKey, V> lru, int maxSize) {
+		Iterator<V> eldest = lru.values().iterator();
+		while (lru.size() > maxSize) {
+			eldest.next();
+			eldest.remove();
+		}
+	}
+
+}
@@ -1,6 +1,7 @@
 package com.gpergrossi.voronoi.infinite;
 
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.gpergrossi.util.geom.shapes.Convex;
 import com.gpergrossi.util.geom.vectors.Double2D;
@@ -12,17 +13,20 @@ public final class InfiniteCell {
 	public final InfiniteVoronoi container;
 	public final int cellX, cellY;
 	public final long seed;
-	public final Random random;
 	public final Double2D site;
+	private volatile Random random;		// Created on first use by getRandom()
 	
 	// Only after init():
-	protected boolean initialized = false;
-	protected boolean inCache = false;
+	static final int UNINITIALIZED = 0, BUILDING = 1, INITIALIZED = 2;
+	final AtomicInteger initState = new AtomicInteger(UNINITIALIZED);
+	protected volatile boolean inCache = false;
 	protected Convex polygon;
 	protected Int2D[] neighbors;
 	
-	// Memory management
-	int refCount;
+	// Memory management, -1 once the cell has been deleted
+	final AtomicInteger refCount = new AtomicInteger();
+	long retainedAt;	// (Use lock of CellRetention)
+	long retainedBytes;
 	
 	// Attaching data
 	public volatile Object data;
@@ -32,28 +36,44 @@ public final class InfiniteCell {
 		this.cellX = x;
 		this.cellY = y;
 		
-		this.seed = createSeed(cellX, cellY);
-		this.random = new Random(seed);
-		double a = random.nextDouble()*Math.PI*2.0;
-		double r = Math.sqrt(random.nextDouble())*container.gridSize*0.5;
-		this.site = new Double2D((cellX+0.5)*container.gridSize + Math.cos(a)*r, (cellY+0.5)*container.gridSize + Math.sin(a)*r);
+		this.seed = container.cellSeed(cellX, cellY);
+		this.site = new Double2D(container.siteX(cellX, cellY), container.siteY(cellX, cellY));
 	}
 
 	public long getSeed() {
 		return seed;
 	}
+	
+	/**
+	 * Replaces the former public random field, which was created with every cell whether it was used or not.
+	 * @return a Random seeded with this cell's seed, created on first use. Every thread gets the same instance.
+	 */
+	public Random getRandom() {
+		Random result = random;
+		if (result == null) {
+			synchronized (this) {
+				result = random;
+				if (result == null) random = result = new Random(seed);
+			}
+		}
+		return result;
+	}
 
 	public Double2D getSite() {
 		return site;
 	}
 	
+	public boolean isInitialized() {
+		return initState.get() == INITIALIZED;
+	}
+	
 	public Convex getPolygon() {
-		if (!initialized) throw new RuntimeException("Cell not initialized");
+		if (!isInitialized()) throw new RuntimeException("Cell not initialized");
 		return polygon;
 	}
 	
 	public Int2D[] getNeighbors() {
-		if (!initialized) throw new RuntimeException("Cell not initialized");
+		if (!isInitialized()) throw new RuntimeException("Cell not initialized");
 		return neighbors;
 	}
 	
@@ -62,33 +82,107 @@ public final class InfiniteCell {
 	 */
 	protected final void init() {
 		if (!inCache) throw new RuntimeException("Only reserved cells (in cache) can be initialized.");
-		if (!initialized) container.initRange(cellX, cellY, cellX, cellY);
+		if (!isInitialized()) container.initCells(new InfiniteCell[] { this }, cellX, cellY, cellX, cellY);
 	}
 	
 	/**
 	 * Increases the reference count on this cell and adds it to the cache if is not already there.
 	 * The cache will only release its pointer to this cell when the reference counter reaches zero again.
 	 */
-	public synchronized void reserve() {
-		refCount++;
-		container.addCache(this);
+	public void reserve() {
+		if (!tryReserve()) throw new IllegalStateException(this+" has already been released");
+		if (!inCache && !container.addCache(this)) {
+			refCount.decrementAndGet();
+			throw new IllegalStateException(this+" was peaked while another instance is cached, use getCell() instead");
+		}
+	}
+	
+	/**
+	 * Increases the reference count unless the cell has already been deleted
+	 */
+	boolean tryReserve() {
+		while (true) {
+			int count = refCount.get();
+			if (count < 0) return false;
+			if (refCount.compareAndSet(count, count+1)) {
+				if (count == 0) container.retention.revive(this);
+				return true;
+			}
+		}
 	}
 
 	/**
-	 * Decreases the reference count on this cell and removes it from the cache if the reference count reaches zero.
+	 * Decreases the reference count on this cell. When the reference count reaches zero the cell 
+	 * is either retained by the container's retention policy or removed from the cache.
+	 */
+	public void release() {
+		int count = refCount.decrementAndGet();
+		if (count < 0) throw new RuntimeException("Negative Reference Count");
+		if (count != 0) return;
+		if (container.retention.isEnabled()) container.retention.retain(this);
+		else if (refCount.compareAndSet(0, -1)) this.delete();
+	}
+	
+	/**
+	 * Rough number of bytes held by this cell, including its polygon and neighbors
 	 */
-	public synchronized void release() {
-		refCount--;
-		if (refCount < 0) throw new RuntimeException("Negative Reference Count");
-		if (refCount == 0) this.delete();
+	public long getMemoryEstimate() {
+		long bytes = 96;
+		Convex polygon = this.polygon;
+		if (polygon != null) bytes += 64 + polygon.getNumVertices() * 40L;
+		Int2D[] neighbors = this.neighbors;
+		if (neighbors != null) bytes += 16 + neighbors.length * 32L;
+		return bytes;
 	}
 
-	private synchronized void delete() {		
-		this.initialized = false;
+	void delete() {
 		this.polygon = null;
 		this.neighbors = null;
+		this.initState.set(UNINITIALIZED);
 		container.removeCache(this);
 	}
+	
+	/**
+	 * Claims the job of building this cell's polygon. Only one thread succeeds 
+	 * until the build either finishes or is abandoned.
+	 */
+	boolean claimBuild() {
+		return initState.compareAndSet(UNINITIALIZED, BUILDING);
+	}
+	
+	void finishBuild(Convex polygon, Int2D[] neighbors) {
+		this.polygon = polygon;
+		this.neighbors = neighbors;
+		synchronized (this) {
+			initState.set(INITIALIZED);
+			this.notifyAll();
+		}
+	}
+	
+	void abandonBuild() {
+		synchronized (this) {
+			if (initState.compareAndSet(BUILDING, UNINITIALIZED)) this.notifyAll();
+		}
+	}
+	
+	/**
+	 * Waits for another thread's build of this cell.
+	 * @return true if the cell is initialized, false if the build was abandoned
+	 */
+	boolean awaitBuild() {
+		synchronized (this) {
+			boolean interrupted = false;
+			while (initState.get() == BUILDING) {
+				try {
+					this.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+		return isInitialized();
+	}
 
 	public Int2D getCoord() {
 		return new Int2D(cellX, cellY);
@@ -99,11 +193,5 @@ public final class InfiniteCell {
 		return "Cell (cellX="+cellX+", cellY="+cellY+")";
 	}
 	
-	private long createSeed(int chunkX, int chunkY) {
-		Random rand = new Random(container.seed);
-		long rx = (chunkX * 341873128712L) ^ rand.nextLong();
-		long ry = (chunkY * 132897987541L) ^ rand.nextLong();
-		return (rx + ry) ^ rand.nextLong();	
-	}
 	
 }
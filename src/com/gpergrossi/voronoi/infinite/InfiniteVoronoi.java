@@ -1,50 +1,227 @@
 package com.gpergrossi.voronoi.infinite;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.function.Function;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
+import com.gpergrossi.util.data.ConcurrentLongHashMap;
 import com.gpergrossi.util.geom.ranges.Int2DRange;
 import com.gpergrossi.util.geom.shapes.Rect;
+import com.gpergrossi.util.geom.vectors.Double2D;
 import com.gpergrossi.util.geom.vectors.Int2D;
 import com.gpergrossi.voronoi.Site;
 import com.gpergrossi.voronoi.Voronoi;
 import com.gpergrossi.voronoi.VoronoiBuilder;
 
+/**
+ * All methods are thread safe. There is no global lock: the cell cache is a concurrent map,
+ * reference counts are atomic, and voronoi diagrams are built by the requesting thread. A 
+ * thread that needs a cell another thread is already building waits for that build instead 
+ * of repeating it.
+ * <br/><br/>
+ * Cells handed out by getCell() and friends are reserved and must be given back with 
+ * cell.release(). A released cell is not deleted right away: up to DEFAULT_RETAINED_CELLS 
+ * released cells stay in the cellCache with their polygons, so asking for them again is free, 
+ * and the oldest are deleted as more are released. See setRetentionPolicy(), a maxCells of 0 
+ * deletes cells from the cellCache as soon as they are released.
+ */
 public class InfiniteVoronoi {
 	
 	public final long seed;
 	public final double gridSize;
 	
-	protected int allocations;
-	Map<Int2D, InfiniteCell> cellCache;
+	public static final int DEFAULT_REGION_SIZE = 32;
+	public static final int DEFAULT_MAX_REGIONS = 16;
+	public static final int DEFAULT_RETAINED_CELLS = 1024;
+	
+	final VoronoiMetrics metrics;
+	final ConcurrentLongHashMap<InfiniteCell> cellCache;	// keyed by Int2D.pack(cellX, cellY)
+	final RegionCache regionCache;
+	final CellRetention retention;
+	volatile CellStore cellStore;
+	private volatile Executor executor;
 
 	public InfiniteVoronoi(double gridSize, long seed) {
+		this(gridSize, seed, DEFAULT_REGION_SIZE, DEFAULT_MAX_REGIONS);
+	}
+	
+	/**
+	 * @param gridSize - size of a cell's grid square in world units
+	 * @param seed
+	 * @param regionSize - cells are built regionSize x regionSize at a time, in aligned regions 
+	 * whose diagrams are kept and reused. 0 builds just the requested cells each time instead.
+	 * @param maxRegions - how many built regions to keep, least recently used regions are dropped first
+	 */
+	public InfiniteVoronoi(double gridSize, long seed, int regionSize, int maxRegions) {
 		this.gridSize = gridSize;
 		this.seed = seed;
 
-		this.allocations = 0;
-		this.cellCache = new HashMap<>();
+		this.metrics = new VoronoiMetrics(this);
+		this.cellCache = new ConcurrentLongHashMap<>();
+		this.regionCache = (regionSize > 0) ? new RegionCache(this, regionSize, maxRegions) : null;
+		this.retention = new CellRetention(this, DEFAULT_RETAINED_CELLS, Long.MAX_VALUE, 0);
+		this.executor = ForkJoinPool.commonPool();
+	}
+	
+	/**
+	 * Cache hit rates, build counts and latencies, lock waits and memory use of this InfiniteVoronoi.
+	 * Use getMetrics().snapshot() to read them or getMetrics().addListener() to be told about builds.
+	 */
+	public VoronoiMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Sets the executor that the asynchronous methods (getCellAsync, getCellsAsync, prefetch) 
+	 * build cells on. The default is the common fork join pool. See virtualThreadExecutor().
+	 */
+	public void setExecutor(Executor executor) {
+		if (executor == null) throw new IllegalArgumentException("executor must not be null");
+		this.executor = executor;
+	}
+	
+	public Executor getExecutor() {
+		return executor;
+	}
+	
+	/**
+	 * Returns an executor that starts a new virtual thread for each task.
+	 * @throws UnsupportedOperationException if the running JVM does not have virtual threads
+	 */
+	public static Executor virtualThreadExecutor() {
+		try {
+			return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Virtual threads are not available in this JVM", e);
+		}
+	}
+	
+	/**
+	 * Attaches a store that built regions are written to and read back from, 
+	 * so that they survive restarts. Null detaches the current store.
+	 * Requires the region cache (a regionSize greater than 0).
+	 */
+	public void setCellStore(CellStore cellStore) {
+		if (cellStore != null && regionCache == null) throw new IllegalStateException("A cell store requires a region size greater than 0");
+		this.cellStore = cellStore;
+	}
+	
+	public CellStore getCellStore() {
+		return cellStore;
+	}
+	
+	/**
+	 * Sets how released cells (reference count of zero) are kept. Retained cells stay in the cache
+	 * with their polygons, so reserving them again is free. The oldest are deleted first when any 
+	 * limit is exceeded. The default keeps DEFAULT_RETAINED_CELLS cells, with no byte or time limit.
+	 * @param maxCells - maximum number of retained cells, 0 deletes cells as soon as they are released
+	 * @param maxBytes - maximum total memory estimate of retained cells (see InfiniteCell.getMemoryEstimate())
+	 * @param ttlMillis - how long a cell may stay retained, 0 for no limit. Expired cells are deleted
+	 * the next time a cell is released or allocated, or by trimRetained().
+	 */
+	public void setRetentionPolicy(int maxCells, long maxBytes, long ttlMillis) {
+		retention.setPolicy(maxCells, maxBytes, ttlMillis);
+	}
+	
+	public int getNumRetained() {
+		return retention.size();
+	}
+	
+	public long getRetainedBytes() {
+		return retention.getRetainedBytes();
+	}
+	
+	/**
+	 * Deletes retained cells that have outlived the retention policy's time to live
+	 */
+	public void trimRetained() {
+		retention.trim();
+	}
+	
+	/**
+	 * Deletes every retained cell
+	 */
+	public void clearRetained() {
+		retention.clear();
+	}
+	
+	/**
+	 * Deterministic seed for a cell, computed from (seed, cellX, cellY) without any state or allocation
+	 */
+	public long cellSeed(int cellX, int cellY) {
+		return mix(mix(seed ^ (cellX * 0x9E3779B97F4A7C15L)) + cellY * 0xC2B2AE3D27D4EB4FL);
+	}
+	
+	/**
+	 * World x coordinate of the cell's site. Sites are uniformly distributed 
+	 * in the circle inscribed in the cell's grid square.
+	 */
+	public double siteX(int cellX, int cellY) {
+		final long sample = siteSample(cellX, cellY);
+		return (cellX + 0.5 + unitOffset(sample >>> 38) * 0.5) * gridSize;
+	}
+	
+	/**
+	 * World y coordinate of the cell's site. See siteX().
+	 */
+	public double siteY(int cellX, int cellY) {
+		final long sample = siteSample(cellX, cellY);
+		return (cellY + 0.5 + unitOffset((sample >>> 12) & SAMPLE_MASK) * 0.5) * gridSize;
+	}
+	
+	private static final long SAMPLE_MASK = (1L << 26) - 1;
+	
+	/**
+	 * Returns the first hash in the cell's sequence whose two 26 bit halves 
+	 * fall inside the unit circle (1.27 tries on average, no trig or sqrt needed).
+	 */
+	private long siteSample(int cellX, int cellY) {
+		long state = cellSeed(cellX, cellY);
+		while (true) {
+			state += 0x9E3779B97F4A7C15L;
+			final long sample = mix(state);
+			final double dx = unitOffset(sample >>> 38);
+			final double dy = unitOffset((sample >>> 12) & SAMPLE_MASK);
+			if (dx*dx + dy*dy <= 1.0) return sample;
+		}
+	}
+	
+	/**
+	 * Maps 26 random bits to [-1, 1)
+	 */
+	private static double unitOffset(long bits) {
+		return bits * (2.0 / (1L << 26)) - 1.0;
+	}
+	
+	/**
+	 * SplitMix64 finalizer
+	 */
+	static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
 	}
 	
 	/**
 	 * Gets a range of cells. Does init(). Does reserve(). Any cell that would be returned 
 	 * but is already in the output list will not be reserved(). Any cell that does not 
 	 * intersect the given range will not be reserved() or returned. All cells returned
-	 * must call cell.release() in order to be removed from the cellCache.
+	 * must call cell.release(), after which they are retained or deleted by the retention policy.
 	 */
-	public synchronized void getCells(Int2DRange range, List<InfiniteCell> output) {
-		int minCellX = (int) Math.floor(range.minX / gridSize) - 2;
-		int minCellY = (int) Math.floor(range.minY / gridSize) - 2;
-		int maxCellX = (int) Math.floor(range.maxX / gridSize) + 2;
-		int maxCellY = (int) Math.floor(range.maxY / gridSize) + 2;
-		InfiniteCell[] cells = initRange(minCellX, minCellY, maxCellX, maxCellY);
+	public void getCells(Int2DRange range, List<InfiniteCell> output) {
+		Set<InfiniteCell> existing = Collections.newSetFromMap(new IdentityHashMap<>());
+		existing.addAll(output);
 		
-		Rect bounds = new Rect(range.minX, range.minY, range.maxX-range.minX+1, range.maxY-range.minY+1);
-		
-		for (InfiniteCell cell : cells) {
-			if (!output.contains(cell) && cell.getPolygon().intersects(bounds)) {
+		for (InfiniteCell cell : initCellBounds(range)) {
+			if (!existing.contains(cell) && intersects(cell, range)) {
 				output.add(cell);
 			} else {
 				cell.release();
@@ -53,38 +230,263 @@ public class InfiniteVoronoi {
 	}
 	
 	/**
-	 * Gets a cell. Does init(). Does reserve().
-	 * Cells returned must call cell.release() in order to be removed from the cellCache.
+	 * Gets the cells intersecting a range, reserved and initialized, in row major order.
+	 * If a previous range is given, its reservations are handed on to the new range: cells 
+	 * in both are not reserved again (isNewlyReserved() is false for them) and cells only in 
+	 * the previous range are released. The previous range must not be used afterwards.
+	 * The returned range must be released (or handed on) in order to free its cells.
 	 */
-	public synchronized InfiniteCell getCell(double x, double y) {
-		int cellX = (int) Math.floor(x / gridSize);
-		int cellY = (int) Math.floor(y / gridSize);
+	public CellRange getCellRange(Int2DRange range, CellRange previous) {
+		Set<InfiniteCell> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+		if (previous != null) {
+			for (InfiniteCell cell : previous) kept.add(cell);
+			previous.transfer();
+		}
 		
-		double lowestDistance = Double.MAX_VALUE;
-		InfiniteCell winner = null;
+		InfiniteCell[] candidates = initCellBounds(range);
+		InfiniteCell[] cells = new InfiniteCell[candidates.length];
+		boolean[] newlyReserved = new boolean[candidates.length];
+		int size = 0;
+		for (InfiniteCell cell : candidates) {
+			if (!intersects(cell, range)) {
+				cell.release();
+				continue;
+			}
+			boolean wasKept = kept.remove(cell);
+			if (wasKept) cell.release();
+			newlyReserved[size] = !wasKept;
+			cells[size++] = cell;
+		}
+		for (InfiniteCell cell : kept) cell.release();
+		
+		return new CellRange(range, Arrays.copyOf(cells, size), Arrays.copyOf(newlyReserved, size));
+	}
+	
+	/**
+	 * Reserves and initializes every cell whose site could be close enough to intersect the range
+	 */
+	private InfiniteCell[] initCellBounds(Int2DRange range) {
+		int minCellX = (int) Math.floor(range.minX / gridSize) - 2;
+		int minCellY = (int) Math.floor(range.minY / gridSize) - 2;
+		int maxCellX = (int) Math.floor(range.maxX / gridSize) + 2;
+		int maxCellY = (int) Math.floor(range.maxY / gridSize) + 2;
+		return initRange(minCellX, minCellY, maxCellX, maxCellY);
+	}
+	
+	private static boolean intersects(InfiniteCell cell, Int2DRange range) {
+		return cell.getPolygon().intersects(range.minX, range.minY, range.maxX+1, range.maxY+1);
+	}
+	
+	/**
+	 * Gets every cell with cell coordinates in the given range, building all of them together.
+	 * Does init(). Does reserve(). The array is in row major order starting at (minX, minY).
+	 * Each cell returned must call cell.release(), after which it is retained or deleted by the retention policy.
+	 */
+	public InfiniteCell[] getCellBlock(Int2DRange cellRange) {
+		return initRange(cellRange.minX, cellRange.minY, cellRange.maxX, cellRange.maxY);
+	}
 
-		for (int iy = -2; iy <= 2; iy++) {
-			for (int ix = -2; ix <= 2; ix++) {
-				InfiniteCell cell = peakCell(cellX+ix, cellY+iy);
-				double dist = cell.site.distanceTo(x, y);
+	/**
+	 * Gets a cell. Does init(). Does reserve().
+	 * Cells returned must call cell.release(), after which they are retained or deleted by the retention policy.
+	 */
+	public InfiniteCell getCell(double x, double y) {
+		long key = new SiteLocator().locate(x, y);
+		return getCell(Int2D.unpackX(key), Int2D.unpackY(key), true);
+	}
+	
+	/**
+	 * Returns Int2D.pack(cellX, cellY) of the cell containing the given point.
+	 * Does not reserve() or init() anything.
+	 */
+	public long getCellKey(double x, double y) {
+		return new SiteLocator().locate(x, y);
+	}
+	
+	/**
+	 * Fills keys[i] with the key (see Int2D.pack()) of the cell containing (xs[i], ys[i]).
+	 * Candidate sites are shared between consecutive points in the same grid cell, so 
+	 * sorting or grouping points spatially makes this faster. Does not reserve() or init().
+	 */
+	public void getCellKeys(double[] xs, double[] ys, long[] keys) {
+		if (xs.length != ys.length || keys.length < xs.length) throw new IllegalArgumentException("Array lengths do not match");
+		SiteLocator locator = new SiteLocator();
+		for (int i = 0; i < xs.length; i++) {
+			keys[i] = locator.locate(xs[i], ys[i]);
+		}
+	}
+	
+	/**
+	 * Fills keys (row major, keys[j*width+i]) with the key (see Int2D.pack()) of the cell 
+	 * containing each sample point (minX + i*step, minY + j*step) of a width by height grid.
+	 * Does not reserve() or init().
+	 */
+	public void getCellKeys(double minX, double minY, double step, int width, int height, long[] keys) {
+		if (keys.length < width*height) throw new IllegalArgumentException("Output array is too small");
+		SiteLocator locator = new SiteLocator();
+		for (int j = 0, index = 0; j < height; j++) {
+			double y = minY + j*step;
+			for (int i = 0; i < width; i++) {
+				keys[index++] = locator.locate(minX + i*step, y);
+			}
+		}
+	}
+	
+	/**
+	 * Finds the closest site to a point among the 5x5 cells around the point's grid cell.
+	 * The 25 candidate sites are kept until a point lands in a different grid cell.
+	 * Each site lies within gridSize/2 of its cell's center, so a candidate whose center 
+	 * is more than gridSize/2 + (best distance) away on either axis is skipped.
+	 * Candidates are visited center first, then the inner ring, then the outer ring.
+	 */
+	private final class SiteLocator {
+		private static final int NUM_CANDIDATES = 25;
+		
+		private final int[] offsetX = new int[NUM_CANDIDATES];
+		private final int[] offsetY = new int[NUM_CANDIDATES];
+		private final double[] siteX = new double[NUM_CANDIDATES];
+		private final double[] siteY = new double[NUM_CANDIDATES];
+		private int baseX, baseY;
+		private boolean valid;
+		
+		SiteLocator() {
+			int n = 0;
+			for (int ring = 0; ring <= 2; ring++) {
+				for (int iy = -ring; iy <= ring; iy++) {
+					for (int ix = -ring; ix <= ring; ix++) {
+						if (Math.max(Math.abs(ix), Math.abs(iy)) != ring) continue;
+						offsetX[n] = ix;
+						offsetY[n] = iy;
+						n++;
+					}
+				}
+			}
+		}
+		
+		private void load(int cellX, int cellY) {
+			for (int n = 0; n < NUM_CANDIDATES; n++) {
+				siteX[n] = siteX(cellX + offsetX[n], cellY + offsetY[n]);
+				siteY[n] = siteY(cellX + offsetX[n], cellY + offsetY[n]);
+			}
+			baseX = cellX;
+			baseY = cellY;
+			valid = true;
+		}
+		
+		long locate(double x, double y) {
+			final int cellX = (int) Math.floor(x / gridSize);
+			final int cellY = (int) Math.floor(y / gridSize);
+			if (!valid || cellX != baseX || cellY != baseY) load(cellX, cellY);
+			
+			final double halfGrid = gridSize * 0.5;
+			final double localX = x - (cellX + 0.5) * gridSize;
+			final double localY = y - (cellY + 0.5) * gridSize;
+			
+			double lowestDistance = Double.MAX_VALUE;
+			int winner = 0;
+			for (int n = 0; n < NUM_CANDIDATES; n++) {
+				double bound = Math.max(Math.abs(offsetX[n]*gridSize - localX), Math.abs(offsetY[n]*gridSize - localY)) - halfGrid;
+				if (bound > 0 && bound*bound >= lowestDistance) continue;
+				
+				double dx = siteX[n] - x;
+				double dy = siteY[n] - y;
+				double dist = dx*dx + dy*dy;
 				if (dist < lowestDistance) {
 					lowestDistance = dist;
-					winner = cell;
+					winner = n;
 				}
-			}	
+			}
+			return Int2D.pack(cellX + offsetX[winner], cellY + offsetY[winner]);
 		}
-		
-		winner.reserve();
-		winner.init();
-		return winner;
 	}
 
+	/**
+	 * Asynchronous version of getCell(int, int). The cell is reserved immediately and 
+	 * initialized on the executor. If the future fails, the reservation is released.
+	 */
+	public CompletableFuture<InfiniteCell> getCellAsync(int x, int y) {
+		final InfiniteCell cell = reserveCell(x, y);
+		if (cell.isInitialized()) return CompletableFuture.completedFuture(cell);
+		
+		CompletableFuture<?> ready;
+		if (regionCache != null) {
+			ready = regionCache.getRegionAsync(regionCache.regionCoord(x), regionCache.regionCoord(y), executor);
+		} else {
+			ready = CompletableFuture.completedFuture(null);
+		}
+		
+		return ready.handleAsync((result, error) -> {
+			if (error != null) {
+				cell.release();
+				throw new CompletionException(error);
+			}
+			try {
+				cell.init();
+			} catch (RuntimeException e) {
+				cell.release();
+				throw e;
+			}
+			return cell;
+		}, executor);
+	}
+	
+	/**
+	 * Asynchronous version of getCell(double, double).
+	 */
+	public CompletableFuture<InfiniteCell> getCellAsync(double x, double y) {
+		long key = getCellKey(x, y);
+		return getCellAsync(Int2D.unpackX(key), Int2D.unpackY(key));
+	}
+	
+	/**
+	 * Asynchronous version of getCells(Int2DRange, List). The list contains every cell 
+	 * intersecting the range, each reserved once.
+	 */
+	public CompletableFuture<List<InfiniteCell>> getCellsAsync(final Int2DRange range) {
+		return prefetch(range).thenApplyAsync(ignored -> {
+			List<InfiniteCell> output = new ArrayList<>();
+			getCells(range, output);
+			return output;
+		}, executor);
+	}
+	
+	/**
+	 * Builds the cells around the given range on the executor without reserving them, 
+	 * so that later requests for them are quick. Regions that are already being built 
+	 * are not built again. Without a region cache, the cells are built and released, 
+	 * which keeps them warm only as long as the retention policy allows.
+	 */
+	public CompletableFuture<Void> prefetch(Int2DRange range) {
+		final int minCellX = (int) Math.floor(range.minX / gridSize) - 2;
+		final int minCellY = (int) Math.floor(range.minY / gridSize) - 2;
+		final int maxCellX = (int) Math.floor(range.maxX / gridSize) + 2;
+		final int maxCellY = (int) Math.floor(range.maxY / gridSize) + 2;
+		
+		if (regionCache == null) {
+			return CompletableFuture.runAsync(() -> {
+				for (InfiniteCell cell : initRange(minCellX, minCellY, maxCellX, maxCellY)) cell.release();
+			}, executor);
+		}
+		
+		final int minRegionX = regionCache.regionCoord(minCellX);
+		final int minRegionY = regionCache.regionCoord(minCellY);
+		final int maxRegionX = regionCache.regionCoord(maxCellX);
+		final int maxRegionY = regionCache.regionCoord(maxCellY);
+		List<CompletableFuture<?>> regions = new ArrayList<>();
+		for (int ry = minRegionY; ry <= maxRegionY; ry++) {
+			for (int rx = minRegionX; rx <= maxRegionX; rx++) {
+				regions.add(regionCache.getRegionAsync(rx, ry, executor));
+			}
+		}
+		return CompletableFuture.allOf(regions.toArray(new CompletableFuture<?>[regions.size()]));
+	}
+	
 	/**
 	 * Gets a cell. Does reserve() and init(), meaning the cell will be stored in the cellCache
 	 * and the poylgon and neighbor information will be calculated.
-	 * Cells returned must call cell.release() in order to be removed from the cellCache.
+	 * Cells returned must call cell.release(), after which they are retained or deleted by the retention policy.
 	 */
-	public synchronized InfiniteCell getCell(int x, int y) {
+	public InfiniteCell getCell(int x, int y) {
 		return getCell(x, y, true);
 	}
 	
@@ -94,25 +496,56 @@ public class InfiniteVoronoi {
 	 * @param cellKey
 	 * @return
 	 */
-	public synchronized InfiniteCell peakCell(int x, int y) {
+	public InfiniteCell peakCell(int x, int y) {
 		return getCell(x, y, false);
 	}
 	
-	private synchronized InfiniteCell getCell(int x, int y, boolean reserve) {
-		InfiniteCell cell = cellCache.get(new Int2D(x, y));
-		if (cell == null) cell = new InfiniteCell(this, x, y);
-		if (reserve) {
-			cell.reserve();
-			cell.init();
+	private InfiniteCell getCell(int x, int y, boolean reserve) {
+		if (!reserve) {
+			InfiniteCell cell = cellCache.get(Int2D.pack(x, y));
+			if (cell == null) cell = new InfiniteCell(this, x, y);
+			return cell;
 		}
+		
+		InfiniteCell cell = reserveCell(x, y);
+		cell.init();
 		return cell;
 	}
 	
+	/**
+	 * Returns the cached instance of a cell with its reference count already increased, 
+	 * creating and caching a new instance if needed. Does not init().
+	 */
+	protected InfiniteCell reserveCell(int x, int y) {
+		final long key = Int2D.pack(x, y);
+		while (true) {
+			InfiniteCell cell = cellCache.get(key);
+			if (cell == null) {
+				InfiniteCell created = new InfiniteCell(this, x, y);
+				created.refCount.set(1);
+				created.inCache = true;
+				cell = cellCache.putIfAbsent(key, created);
+				if (cell == null) {
+					metrics.recordMiss();
+					metrics.cellAdded();
+					retention.trim();
+					return created;
+				}
+			}
+			if (cell.tryReserve()) {
+				metrics.recordHit();
+				return cell;
+			}
+			
+			// The cell was released and is being deleted, help remove it and try again
+			cellCache.remove(key, cell);
+		}
+	}
+	
 	/**
 	 * Initializes a rectangle of cells because it is much less wasteful when possible (one voronoi diagram constructed for all).
 	 * The return array will be in array[y*width+x] order, with the Cell corresponding to (minCellX, minCellY) in the 0th index.
 	 * All cells returned will be reserved and initialized.
-	 * @param container - the InfiniteVoronoi container
 	 * @param minCellX - cellX minimum
 	 * @param minCellY - cellY minimum
 	 * @param maxCellX - cellX maximum
@@ -124,79 +557,140 @@ public class InfiniteVoronoi {
 		int height = maxCellY - minCellY + 1;
 		InfiniteCell[] results = new InfiniteCell[width * height];
 		
-		final int padding = 2; // # of cells (in all directions) around the outside of the ones we care about
-
-		int workWidth = width + padding*2;
-		int workHeight = height + padding*2;
-		int[] workIDs = new int[width * height];
-		Map<Integer, InfiniteCell> workCellMap = new HashMap<>();
-
-		VoronoiBuilder builder = new VoronoiBuilder();
-		final double boundsX = (minCellX-padding) * gridSize;
-		final double boundsY = (minCellY-padding) * gridSize;
-		final double boundsWidth = workWidth * gridSize;
-		final double boundsHeight = workHeight * gridSize;
-		builder.setBounds(new Rect(boundsX, boundsY, boundsWidth, boundsHeight));
-		
-		boolean needBuild = false;
-		for (int j = 0; j < workHeight; j++) {
-			final boolean jIsPadding = (j < padding || j >= workHeight-padding);
-			for (int i = 0; i < workWidth; i++) {
-				InfiniteCell cell = peakCell(minCellX-padding+i, minCellY-padding+j);
-				int cellIndex = builder.addSite(cell.site);
-				workCellMap.put(cellIndex, cell);
-				
-				if (!jIsPadding && i >= padding && i < workWidth-padding) {
-					results[(j-padding)*width+(i-padding)] = cell;
-					workIDs[(j-padding)*width+(i-padding)] = cellIndex;
-					cell.reserve();
-					if (!cell.initialized) needBuild = true;
+		for (int j = 0; j < height; j++) {
+			for (int i = 0; i < width; i++) {
+				results[j*width+i] = reserveCell(minCellX+i, minCellY+j);
+			}
+		}
+		
+		initCells(results, minCellX, minCellY, maxCellX, maxCellY);
+		return results;
+	}
+	
+	/**
+	 * Makes sure every one of the given reserved cells is initialized. Cells that no other thread
+	 * is building are claimed and built, either from the cached regions that contain them or together 
+	 * in one diagram over the given cell bounds, which must contain all of them. Cells claimed by other
+	 * threads are waited on afterwards.
+	 */
+	void initCells(InfiniteCell[] cells, int minCellX, int minCellY, int maxCellX, int maxCellY) {
+		List<InfiniteCell> claimed = new ArrayList<>();
+		boolean othersBuilding = false;
+		for (InfiniteCell cell : cells) {
+			if (cell.isInitialized()) continue;
+			if (cell.claimBuild()) claimed.add(cell);
+			else othersBuilding = true;
+		}
+		
+		if (!claimed.isEmpty()) {
+			try {
+				if (regionCache != null) {
+					regionCache.finishBuilds(claimed);
+				} else {
+					long start = System.nanoTime();
+					Diagram diagram = new Diagram(minCellX, minCellY, maxCellX, maxCellY);
+					for (InfiniteCell cell : claimed) {
+						Site site = diagram.getSite(cell.cellX, cell.cellY);
+						cell.finishBuild(site.getPolygon(), diagram.getNeighbors(site));
+					}
+					metrics.recordBuild(diagram.getNumSites(), claimed.size(), System.nanoTime() - start);
 				}
+			} finally {
+				for (InfiniteCell cell : claimed) cell.abandonBuild();
 			}
 		}
-		if (!needBuild) return results;
 		
-		Voronoi voronoi = builder.build();
+		if (!othersBuilding) return;
+		for (InfiniteCell cell : cells) {
+			if (cell.isInitialized()) continue;
+			long start = System.nanoTime();
+			boolean built = cell.awaitBuild();
+			metrics.recordLockWait(System.nanoTime() - start);
+			if (!built) {
+				// The other thread failed, build it ourselves
+				initCells(new InfiniteCell[] { cell }, cell.cellX, cell.cellY, cell.cellX, cell.cellY);
+			}
+		}
+	}
+	
+	/**
+	 * One voronoi diagram built over a rectangle of cells plus padding. 
+	 * Only the cells inside the rectangle have correct polygons.
+	 */
+	final class Diagram {
 		
-		for (int j = 0; j < height; j++) {
-			for (int i = 0; i < width; i++) {
-				InfiniteCell cell = results[j*width+i];
-				int cellIndex = workIDs[j*width+i];
-				
-				if (!cell.initialized) {
-					Site site = voronoi.getSite(cellIndex);
-					Function<Site, Int2D> siteToCellLocation = new Function<Site, Int2D>() {
-						public Int2D apply(Site site) {
-							InfiniteCell cell = workCellMap.get(site.index);
-							if (cell == null) return null;
-							return new Int2D(cell.cellX, cell.cellY);
-						}
-					};
-					cell.neighbors = site.getNeighbors().stream().map(siteToCellLocation).toArray(size -> new Int2D[size]);
-					cell.polygon = site.getPolygon();
-					cell.initialized = true;
+		static final int PADDING = 2; // # of cells (in all directions) around the outside of the ones we care about
+		
+		final int minCellX, minCellY;
+		final int workMinX, workMinY, workWidth, workHeight;
+		final int[] siteIndices;	// site index of each work cell in (j*workWidth + i) order
+		final int[] siteCellIndex;	// work cell of each site index
+		final Voronoi voronoi;
+		
+		Diagram(int minCellX, int minCellY, int maxCellX, int maxCellY) {
+			this.minCellX = minCellX;
+			this.minCellY = minCellY;
+			this.workMinX = minCellX - PADDING;
+			this.workMinY = minCellY - PADDING;
+			this.workWidth = maxCellX - minCellX + 1 + PADDING*2;
+			this.workHeight = maxCellY - minCellY + 1 + PADDING*2;
+			this.siteIndices = new int[workWidth * workHeight];
+			this.siteCellIndex = new int[workWidth * workHeight];
+			
+			VoronoiBuilder builder = new VoronoiBuilder(workWidth * workHeight);
+			builder.setBounds(new Rect(workMinX * gridSize, workMinY * gridSize, workWidth * gridSize, workHeight * gridSize));
+			
+			for (int j = 0; j < workHeight; j++) {
+				for (int i = 0; i < workWidth; i++) {
+					int siteIndex = builder.addSite(new Double2D(siteX(workMinX+i, workMinY+j), siteY(workMinX+i, workMinY+j)));
+					siteIndices[j*workWidth+i] = siteIndex;
+					siteCellIndex[siteIndex] = j*workWidth+i;
 				}
 			}
+			
+			this.voronoi = builder.build();
+		}
+		
+		int getNumSites() {
+			return workWidth * workHeight;
+		}
+		
+		Site getSite(int cellX, int cellY) {
+			return voronoi.getSite(siteIndices[(cellY-workMinY)*workWidth + (cellX-workMinX)]);
+		}
+		
+		Int2D[] getNeighbors(Site site) {
+			List<Site> neighborSites = site.getNeighbors();
+			Int2D[] neighbors = new Int2D[neighborSites.size()];
+			for (int n = 0; n < neighbors.length; n++) {
+				int workIndex = siteCellIndex[neighborSites.get(n).index];
+				neighbors[n] = new Int2D(workMinX + workIndex % workWidth, workMinY + workIndex / workWidth);
+			}
+			return neighbors;
 		}
 		
-		return results;
 	}
 
-	protected void addCache(InfiniteCell cell) {
-		if (cell.inCache) return;
+	/**
+	 * Adds a cell that was created by peakCell() to the cache. 
+	 * @return false if a different instance for the same coordinates is already cached
+	 */
+	protected boolean addCache(InfiniteCell cell) {
+		if (cell.inCache) return true;
 		
-		cellCache.put(new Int2D(cell.cellX, cell.cellY), cell);
+		InfiniteCell existing = cellCache.putIfAbsent(Int2D.pack(cell.cellX, cell.cellY), cell);
+		if (existing != null) return existing == cell;
 		cell.inCache = true;
-		this.allocations++;
+		metrics.cellAdded();
+		return true;
 	}
 
 	protected void removeCache(InfiniteCell cell) {
 		if (!cell.inCache) return;
 		
-		cellCache.remove(new Int2D(cell.cellX, cell.cellY));
+		cellCache.remove(Int2D.pack(cell.cellX, cell.cellY), cell);
 		cell.inCache = false;
-		this.allocations--;
-		
+		metrics.cellRemoved();
 	}
 	
 }
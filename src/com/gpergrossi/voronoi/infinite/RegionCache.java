@@ -0,0 +1,221 @@
+package com.gpergrossi.voronoi.infinite;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.gpergrossi.util.geom.shapes.Convex;
+import com.gpergrossi.util.geom.vectors.Int2D;
+import com.gpergrossi.voronoi.Site;
+
+/**
+ * Keeps the polygons and neighbors of fixed, aligned regions of cells (regionSize x regionSize, 
+ * built with the usual padding) so that neighboring requests do not each build their own diagram.
+ * Regions are built once, by the first thread that needs them, and whole regions are dropped in 
+ * least recently used order when there are more than maxRegions. If the container has a
+ * CellStore, regions are read from it before being built and written to it after.
+ */
+class RegionCache {
+
+	final InfiniteVoronoi container;
+	final int regionSize;
+	final int maxRegions;
+	
+	private final Map<Int2D, Region> regions;	// Access ordered (Use lock on regions)
+	private final ConcurrentMap<Int2D, CompletableFuture<Region>> pendingBuilds;
+	
+	RegionCache(InfiniteVoronoi container, int regionSize, int maxRegions) {
+		if (maxRegions < 1) throw new IllegalArgumentException("maxRegions must be at least 1");
+		this.container = container;
+		this.regionSize = regionSize;
+		this.maxRegions = maxRegions;
+		this.regions = new LinkedHashMap<>(maxRegions*2, 0.75f, true);
+		this.pendingBuilds = new ConcurrentHashMap<>();
+	}
+	
+	int regionCoord(int cellCoord) {
+		return Math.floorDiv(cellCoord, regionSize);
+	}
+	
+	/**
+	 * Hands each of the given cells its polygon and neighbors from the region containing it,
+	 * building regions as needed. A build is recorded with the number of these cells it delivered,
+	 * after the region's lock has been released so that listeners never run while holding it.
+	 */
+	void finishBuilds(List<InfiniteCell> cells) {
+		Map<Region, int[]> builtHere = new HashMap<>();	// Cells delivered by each region built by this call
+		int fromCache = 0;
+		try {
+			for (InfiniteCell cell : cells) {
+				Region region = getRegionUnbuilt(regionCoord(cell.cellX), regionCoord(cell.cellY));
+				if (region.ensureBuilt()) builtHere.put(region, new int[1]);
+				region.finishBuild(cell);
+				
+				int[] delivered = builtHere.get(region);
+				if (delivered != null) delivered[0]++;
+				else fromCache++;
+			}
+		} finally {
+			container.metrics.recordCellsDelivered(fromCache);
+			for (Map.Entry<Region, int[]> entry : builtHere.entrySet()) {
+				Region region = entry.getKey();
+				container.metrics.recordBuild(region.sitesBuilt, entry.getValue()[0], region.buildNanos);
+			}
+		}
+	}
+	
+	Region getRegionUnbuilt(int regionX, int regionY) {
+		Int2D key = new Int2D(regionX, regionY);
+		synchronized (regions) {
+			Region region = regions.get(key);
+			if (region != null) {
+				container.metrics.recordRegionHit();
+				return region;
+			}
+			
+			container.metrics.recordRegionMiss();
+			region = new Region(regionX, regionY);
+			regions.put(key, region);
+			
+			Iterator<Region> eldest = regions.values().iterator();
+			while (regions.size() > maxRegions) {
+				eldest.next();
+				eldest.remove();
+				container.metrics.recordRegionEviction();
+			}
+			return region;
+		}
+	}
+	
+	/**
+	 * Returns a future for the built region, building it with the given executor if needed.
+	 * Requests for a region that is already being built this way share the same future.
+	 */
+	CompletableFuture<Region> getRegionAsync(int regionX, int regionY, Executor executor) {
+		final Region region = getRegionUnbuilt(regionX, regionY);
+		if (region.built) return CompletableFuture.completedFuture(region);
+		
+		final Int2D key = new Int2D(regionX, regionY);
+		CompletableFuture<Region> future = pendingBuilds.get(key);
+		if (future != null) return future;
+		
+		final CompletableFuture<Region> created = new CompletableFuture<>();
+		future = pendingBuilds.putIfAbsent(key, created);
+		if (future != null) return future;
+		
+		try {
+			executor.execute(() -> {
+				try {
+					if (region.ensureBuilt()) container.metrics.recordBuild(region.sitesBuilt, 0, region.buildNanos);
+					created.complete(region);
+				} catch (Throwable t) {
+					created.completeExceptionally(t);
+				} finally {
+					pendingBuilds.remove(key, created);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			pendingBuilds.remove(key, created);
+			created.completeExceptionally(e);
+		}
+		return created;
+	}
+	
+	void clear() {
+		synchronized (regions) {
+			regions.clear();
+		}
+	}
+	
+	final class Region {
+		
+		final int regionX, regionY;
+		final int minCellX, minCellY;
+		
+		private volatile boolean built;
+		private Convex[] polygons;
+		private Int2D[][] neighbors;
+		private int sitesBuilt;		// Set by the thread that built the diagram, for its metrics
+		private long buildNanos;
+		
+		Region(int regionX, int regionY) {
+			this.regionX = regionX;
+			this.regionY = regionY;
+			this.minCellX = regionX * regionSize;
+			this.minCellY = regionY * regionSize;
+		}
+		
+		/**
+		 * Builds the region unless it is already built. Other threads needing 
+		 * the same region wait here for the first one to finish.
+		 * @return true if this call built a diagram for the region, the caller should record the build
+		 */
+		boolean ensureBuilt() {
+			if (built) return false;
+			long start = System.nanoTime();
+			synchronized (this) {
+				if (built) {
+					container.metrics.recordLockWait(System.nanoTime() - start);
+					return false;
+				}
+				
+				Convex[] polygons = new Convex[regionSize * regionSize];
+				Int2D[][] neighbors = new Int2D[regionSize * regionSize][];
+				
+				boolean builtDiagram = false;
+				CellStore store = container.cellStore;
+				if (store != null && store.read(container, regionX, regionY, regionSize, polygons, neighbors)) {
+					container.metrics.recordStoreRead();
+				} else {
+					long buildStart = System.nanoTime();
+					final int maxCellX = minCellX + regionSize - 1;
+					final int maxCellY = minCellY + regionSize - 1;
+					InfiniteVoronoi.Diagram diagram = container.new Diagram(minCellX, minCellY, maxCellX, maxCellY);
+					
+					for (int j = 0; j < regionSize; j++) {
+						for (int i = 0; i < regionSize; i++) {
+							Site site = diagram.getSite(minCellX+i, minCellY+j);
+							polygons[j*regionSize+i] = site.getPolygon();
+							neighbors[j*regionSize+i] = diagram.getNeighbors(site);
+						}
+					}
+					this.sitesBuilt = diagram.getNumSites();
+					this.buildNanos = System.nanoTime() - buildStart;
+					builtDiagram = true;
+					
+					if (store != null) {
+						try {
+							store.write(container, regionX, regionY, regionSize, polygons, neighbors);
+						} catch (IOException e) {
+							// The region was still built, only the copy on disk is missing
+							container.metrics.recordStoreFailure(e);
+						}
+					}
+				}
+				
+				this.polygons = polygons;
+				this.neighbors = neighbors;
+				this.built = true;
+				return builtDiagram;
+			}
+		}
+		
+		/**
+		 * Hands the cell its polygon and neighbors from this (built) region
+		 */
+		void finishBuild(InfiniteCell cell) {
+			int index = (cell.cellY - minCellY) * regionSize + (cell.cellX - minCellX);
+			cell.finishBuild(polygons[index], neighbors[index]);
+		}
+		
+	}
+	
+}
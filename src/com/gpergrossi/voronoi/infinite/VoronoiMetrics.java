@@ -0,0 +1,265 @@
+package com.gpergrossi.voronoi.infinite;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing how an InfiniteVoronoi's caches are behaving. Recording is cheap and
+ * contention free (LongAdders). Read them all at once with snapshot(), or register a
+ * BuildListener to be told about every diagram build as it finishes.
+ */
+public final class VoronoiMetrics {
+
+	public static interface BuildListener {
+		/**
+		 * Called on the building thread after each voronoi diagram is built, never while holding a cache lock
+		 * @param sitesBuilt - number of sites in the diagram, including padding
+		 * @param cellsDelivered - number of cells that received polygons from it for the request that built it.
+		 * Cells handed out later from a cached region are only counted in Snapshot.cellsDelivered.
+		 * @param nanos - time taken to build the diagram
+		 */
+		public void buildFinished(int sitesBuilt, int cellsDelivered, long nanos);
+	}
+
+	public static final int NUM_LATENCY_BUCKETS = 64;
+
+	final InfiniteVoronoi container;
+
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder cacheMisses = new LongAdder();
+	private final LongAdder builds = new LongAdder();
+	private final LongAdder sitesBuilt = new LongAdder();
+	private final LongAdder cellsDelivered = new LongAdder();
+	private final LongAdder buildNanos = new LongAdder();
+	private final LongAdder[] buildLatency;
+	private final LongAdder regionHits = new LongAdder();
+	private final LongAdder regionMisses = new LongAdder();
+	private final LongAdder regionEvictions = new LongAdder();
+	private final LongAdder storeReads = new LongAdder();
+	private final LongAdder storeFailures = new LongAdder();
+	private volatile IOException lastStoreFailure;
+	private final LongAdder lockWaits = new LongAdder();
+	private final LongAdder lockWaitNanos = new LongAdder();
+	private final LongAdder liveCells = new LongAdder();
+
+	private final List<BuildListener> listeners = new CopyOnWriteArrayList<>();
+
+	VoronoiMetrics(InfiniteVoronoi container) {
+		this.container = container;
+		this.buildLatency = new LongAdder[NUM_LATENCY_BUCKETS];
+		for (int i = 0; i < NUM_LATENCY_BUCKETS; i++) buildLatency[i] = new LongAdder();
+	}
+
+	public void addListener(BuildListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(BuildListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Bucket i counts builds that took between 2^i and 2^(i+1) nanoseconds
+	 */
+	static int latencyBucket(long nanos) {
+		return 63 - Long.numberOfLeadingZeros(Math.max(nanos, 1));
+	}
+
+	void recordHit() {
+		cacheHits.increment();
+	}
+
+	void recordMiss() {
+		cacheMisses.increment();
+	}
+
+	void recordBuild(int sites, int cells, long nanos) {
+		builds.increment();
+		sitesBuilt.add(sites);
+		cellsDelivered.add(cells);
+		buildNanos.add(nanos);
+		buildLatency[latencyBucket(nanos)].increment();
+		for (BuildListener listener : listeners) listener.buildFinished(sites, cells, nanos);
+	}
+
+	/**
+	 * Cells handed out from a region that was built earlier
+	 */
+	void recordCellsDelivered(int cells) {
+		if (cells > 0) cellsDelivered.add(cells);
+	}
+
+	void recordRegionHit() {
+		regionHits.increment();
+	}
+
+	void recordRegionMiss() {
+		regionMisses.increment();
+	}
+
+	void recordRegionEviction() {
+		regionEvictions.increment();
+	}
+
+	void recordStoreRead() {
+		storeReads.increment();
+	}
+
+	void recordStoreFailure(IOException e) {
+		storeFailures.increment();
+		lastStoreFailure = e;
+	}
+
+	/**
+	 * @return the exception thrown by the most recent failed CellStore write, or null if none have failed since the last reset()
+	 */
+	public IOException getLastStoreFailure() {
+		return lastStoreFailure;
+	}
+
+	void recordLockWait(long nanos) {
+		lockWaits.increment();
+		lockWaitNanos.add(nanos);
+	}
+
+	void cellAdded() {
+		liveCells.increment();
+	}
+
+	void cellRemoved() {
+		liveCells.decrement();
+	}
+
+	/**
+	 * Resets every counter except the live cell count
+	 */
+	public void reset() {
+		cacheHits.reset();
+		cacheMisses.reset();
+		builds.reset();
+		sitesBuilt.reset();
+		cellsDelivered.reset();
+		buildNanos.reset();
+		for (LongAdder bucket : buildLatency) bucket.reset();
+		regionHits.reset();
+		regionMisses.reset();
+		regionEvictions.reset();
+		storeReads.reset();
+		storeFailures.reset();
+		lastStoreFailure = null;
+		lockWaits.reset();
+		lockWaitNanos.reset();
+	}
+
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	/**
+	 * The counters of a VoronoiMetrics at one point in time. Counters are read one
+	 * after another, so values recorded during the snapshot may be partially included.
+	 */
+	public static final class Snapshot {
+		/** Reservations that found the cell already cached */
+		public final long cacheHits;
+		/** Reservations that had to create a new cell */
+		public final long cacheMisses;
+		/** Voronoi diagrams built */
+		public final long builds;
+		/** Sites in all diagrams built, including padding */
+		public final long sitesBuilt;
+		/** Cells that received their polygon, from a new diagram or from a cached region */
+		public final long cellsDelivered;
+		public final long buildNanos;
+		/** See latencyBucket() */
+		public final long[] buildLatency;
+		/** Region lookups that found the region cached, built or not */
+		public final long regionHits;
+		public final long regionMisses;
+		/** Regions dropped to stay within maxRegions */
+		public final long regionEvictions;
+		/** Regions read from a CellStore instead of being built */
+		public final long storeReads;
+		/** Built regions that could not be written to the CellStore, see getLastStoreFailure() */
+		public final long storeFailures;
+		/** Times a thread waited for another thread's build */
+		public final long lockWaits;
+		public final long lockWaitNanos;
+		/** Cells currently in the cache, whether reserved or retained */
+		public final long liveCells;
+		public final long retainedCells;
+		public final long retainedBytes;
+
+		private Snapshot(VoronoiMetrics metrics) {
+			this.cacheHits = metrics.cacheHits.sum();
+			this.cacheMisses = metrics.cacheMisses.sum();
+			this.builds = metrics.builds.sum();
+			this.sitesBuilt = metrics.sitesBuilt.sum();
+			this.cellsDelivered = metrics.cellsDelivered.sum();
+			this.buildNanos = metrics.buildNanos.sum();
+			this.buildLatency = new long[NUM_LATENCY_BUCKETS];
+			for (int i = 0; i < NUM_LATENCY_BUCKETS; i++) buildLatency[i] = metrics.buildLatency[i].sum();
+			this.regionHits = metrics.regionHits.sum();
+			this.regionMisses = metrics.regionMisses.sum();
+			this.regionEvictions = metrics.regionEvictions.sum();
+			this.storeReads = metrics.storeReads.sum();
+			this.storeFailures = metrics.storeFailures.sum();
+			this.lockWaits = metrics.lockWaits.sum();
+			this.lockWaitNanos = metrics.lockWaitNanos.sum();
+			this.liveCells = metrics.liveCells.sum();
+			this.retainedCells = metrics.container.getNumRetained();
+			this.retainedBytes = metrics.container.getRetainedBytes();
+		}
+
+		public double getHitRate() {
+			long total = cacheHits + cacheMisses;
+			return (total == 0) ? 0 : (double) cacheHits / total;
+		}
+
+		public double getCellsPerBuild() {
+			return (builds == 0) ? 0 : (double) cellsDelivered / builds;
+		}
+
+		/**
+		 * @return sites built per cell delivered, 1 would mean no padding was wasted
+		 */
+		public double getPaddingOverhead() {
+			return (cellsDelivered == 0) ? 0 : (double) sitesBuilt / cellsDelivered;
+		}
+
+		public double getRegionHitRate() {
+			long total = regionHits + regionMisses;
+			return (total == 0) ? 0 : (double) regionHits / total;
+		}
+
+		public double getMeanBuildNanos() {
+			return (builds == 0) ? 0 : (double) buildNanos / builds;
+		}
+
+		/**
+		 * @param fraction - in [0, 1], e.g. 0.99 for the 99th percentile
+		 * @return an upper bound (the top of the histogram bucket) on the build latency at the given fraction
+		 */
+		public long getBuildLatencyPercentile(double fraction) {
+			long target = (long) Math.ceil(builds * fraction);
+			long count = 0;
+			for (int i = 0; i < NUM_LATENCY_BUCKETS; i++) {
+				count += buildLatency[i];
+				if (count >= target && count > 0) return (i >= 62) ? Long.MAX_VALUE : (1L << (i+1));
+			}
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			return "VoronoiMetrics (hits="+cacheHits+", misses="+cacheMisses+", builds="+builds+", cellsPerBuild="+String.format("%.1f", getCellsPerBuild())
+				+", paddingOverhead="+String.format("%.2f", getPaddingOverhead())+", meanBuildMs="+String.format("%.3f", getMeanBuildNanos()/1000000.0)
+				+", regionHits="+regionHits+", regionMisses="+regionMisses+", regionEvictions="+regionEvictions
+				+", storeReads="+storeReads+", storeFailures="+storeFailures+", lockWaits="+lockWaits+", lockWaitMs="+(lockWaitNanos/1000000)
+				+", liveCells="+liveCells+", retainedCells="+retainedCells+", retainedBytes="+retainedBytes+")";
+		}
+	}
+
+}
@@ -65,6 +65,7 @@ public class InfiniteVoronoi extends View {
 	public void init() {
 		chunkLoader = new InfiniteVoronoiChunkLoader(8964591453215L);
 		chunkManager = new View2DChunkManager<InfiniteVoronoiChunk>(chunkLoader, 1);	
+		chunkManager.setPrefetchLookahead(20);
 	}
 	
 	@Override
@@ -89,7 +90,7 @@ public class InfiniteVoronoi extends View {
 	}
 	
 	@Override
-	public void drawWorld(Graphics2D g2d) {		Rectangle2D bounds = this.getViewWorldBounds();		chunkManager.setView(bounds);		chunkManager.update();		chunkManager.draw(g2d);
+	public void drawWorld(Graphics2D g2d) {		Rectangle2D bounds = this.getViewWorldBounds();		chunkManager.setView(bounds);		chunkManager.setTileScale(getViewZoom());		chunkManager.update();		chunkManager.draw(g2d);
 	}
 
 	@Override
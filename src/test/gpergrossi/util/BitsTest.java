@@ -0,0 +1,127 @@
+package test.gpergrossi.util;
+
+import java.util.Random;
+
+import com.gpergrossi.util.geom.ranges.Int2DRange;
+
+public class BitsTest {
+
+	public static void main(String[] args) {
+		Random random = new Random(4378921L);
+		for (int i = 0; i < 200; i++) {
+			testCombine(random);
+			testFillAndScan(random);
+		}
+		System.out.println("All tests passed");
+	}
+
+	private static Int2DRange.Bits randomBits(Random random) {
+		int minX = random.nextInt(200)-100;
+		int minY = random.nextInt(200)-100;
+		Int2DRange.Bits bits = new Int2DRange.Bits(minX, minY, minX+random.nextInt(150), minY+random.nextInt(20));
+		float density = random.nextFloat();
+		for (int i = 0; i < bits.size(); i++) {
+			bits.set(i, random.nextFloat() < density);
+		}
+		return bits;
+	}
+
+	private static void testCombine(Random random) {
+		Int2DRange.Bits a = randomBits(random);
+		Int2DRange.Bits b = random.nextBoolean() ? randomBits(random) : copy(randomBits(random), a);
+		int op = random.nextInt(5);
+
+		boolean[] expected = new boolean[a.size()];
+		for (int i = 0; i < a.size(); i++) {
+			int x = (i % a.width) + a.minX;
+			int y = (i / a.width) + a.minY;
+			boolean va = a.get(i);
+			if (!b.contains(x, y)) {
+				expected[i] = va;
+				continue;
+			}
+			boolean vb = b.get(x, y);
+			switch (op) {
+				case 0: expected[i] = va & vb; break;
+				case 1: expected[i] = va | vb; break;
+				case 2: expected[i] = va ^ vb; break;
+				case 3: expected[i] = va & !vb; break;
+				case 4: expected[i] = vb; break;
+			}
+		}
+
+		switch (op) {
+			case 0: a.and(b); break;
+			case 1: a.or(b); break;
+			case 2: a.xor(b); break;
+			case 3: a.andNot(b); break;
+			case 4: Int2DRange.Bits.copyRange(b, a, 0, 0); break;
+		}
+
+		int count = 0;
+		for (int i = 0; i < a.size(); i++) {
+			assertEquals(a.get(i), expected[i]);
+			if (expected[i]) count++;
+		}
+		assertEquals(a.cardinality(), count);
+	}
+
+	private static Int2DRange.Bits copy(Int2DRange.Bits values, Int2DRange range) {
+		Int2DRange.Bits result = new Int2DRange.Bits(range);
+		for (int i = 0; i < result.size(); i++) {
+			result.set(i, values.get(i % values.size()));
+		}
+		return result;
+	}
+
+	private static void testFillAndScan(Random random) {
+		Int2DRange.Bits bits = randomBits(random);
+		Int2DRange rect = new Int2DRange(bits.randomX(random), bits.randomY(random), bits.randomX(random), bits.randomY(random));
+		boolean value = random.nextBoolean();
+
+		boolean[] expected = new boolean[bits.size()];
+		for (int i = 0; i < bits.size(); i++) {
+			int x = (i % bits.width) + bits.minX;
+			int y = (i / bits.width) + bits.minY;
+			expected[i] = rect.contains(x, y) ? value : bits.get(i);
+		}
+		bits.fill(rect, value);
+
+		for (int i = 0; i < bits.size(); i++) {
+			assertEquals(bits.get(i), expected[i]);
+		}
+
+		int next = bits.nextSetBit(0);
+		for (int i = 0; i < bits.size(); i++) {
+			if (!expected[i]) continue;
+			assertEquals(next, i);
+			next = bits.nextSetBit(i+1);
+		}
+		assertEquals(next, -1);
+
+		boolean[] runs = new boolean[bits.size()];
+		bits.forEachRun((y, minX, maxX) -> {
+			for (int x = minX; x <= maxX; x++) {
+				int index = bits.indexFor(x, y);
+				assertFalse(runs[index]);
+				runs[index] = true;
+			}
+		});
+		for (int i = 0; i < bits.size(); i++) {
+			assertEquals(runs[i], expected[i]);
+		}
+	}
+
+	private static void assertFalse(boolean cond) {
+		if (cond) throw new RuntimeException("Assertion failed");
+	}
+
+	private static void assertEquals(boolean i, boolean j) {
+		if (i != j) throw new RuntimeException("Assertion failed, expected "+j+" got "+i);
+	}
+
+	private static void assertEquals(int i, int j) {
+		if (i != j) throw new RuntimeException("Assertion failed, expected "+j+" got "+i);
+	}
+
+}
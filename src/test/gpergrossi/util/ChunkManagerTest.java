@@ -0,0 +1,489 @@
+package test.gpergrossi.util;
+
+import java.awt.Graphics2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import com.gpergrossi.gui.chunks.Chunk;
+import com.gpergrossi.gui.chunks.ChunkLoader;
+import com.gpergrossi.gui.chunks.ChunkManager;
+import com.gpergrossi.gui.chunks.StreamingChunkManager;
+import com.gpergrossi.gui.chunks.View2DChunk;
+import com.gpergrossi.gui.chunks.View2DChunkManager;
+import com.gpergrossi.util.geom.vectors.Int2D;
+
+public class ChunkManagerTest {
+
+	private static class TestChunk extends Chunk<TestChunk> {
+		volatile CountDownLatch gate;				// load() waits for this if set
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch returned = new CountDownLatch(1);
+		volatile boolean complete;
+		volatile boolean loadedDegraded;
+		final int distanceSq;
+		final AtomicInteger loads = new AtomicInteger();
+		final AtomicInteger partialLoads = new AtomicInteger();	// afterLoad() called on a load that gave up
+
+		TestChunk(ChunkManager<TestChunk> manager, int chunkX, int chunkY) {
+			super(manager, chunkX, chunkY);
+			this.distanceSq = chunkX*chunkX + chunkY*chunkY;
+		}
+
+		@Override
+		public void load() {
+			loads.incrementAndGet();
+			entered.countDown();
+			try {
+				CountDownLatch gate = this.gate;
+				if (gate != null) await(gate);
+				if (isLoadCancelled()) return;
+				sleep(((TestLoader) getChunkLoader()).loadMillis);
+				loadedDegraded = isDegraded();
+				complete = true;
+			} finally {
+				returned.countDown();
+			}
+		}
+
+		@Override
+		public void unload() {
+			complete = false;
+		}
+
+		@Override
+		protected void afterLoad() {
+			if (!complete) partialLoads.incrementAndGet();
+		}
+	}
+
+	private static class TestLoader extends ChunkLoader<TestChunk> {
+		final Map<Long, TestChunk> chunks = new HashMap<>();
+		int batchSize = 1;
+		volatile int loadMillis;
+
+		@Override
+		public synchronized TestChunk getChunk(int chunkX, int chunkY) {
+			long key = Int2D.pack(chunkX, chunkY);
+			TestChunk chunk = chunks.get(key);
+			if (chunk == null) {
+				chunk = new TestChunk(getManager(), chunkX, chunkY);
+				chunks.put(key, chunk);
+			}
+			return chunk;
+		}
+
+		@Override
+		public int getBatchSize() {
+			return batchSize;
+		}
+	}
+
+	private static class TileChunk extends View2DChunk<TileChunk> {
+		final Rectangle2D bounds;
+		volatile Rectangle2D shape;		// Cleared by unload(), like a real chunk's data
+		final AtomicInteger draws = new AtomicInteger();
+		volatile Thread lastDrawThread;
+
+		TileChunk(ChunkManager<TileChunk> manager, int chunkX, int chunkY) {
+			super(manager, chunkX, chunkY);
+			double size = manager.getLoader().getChunkSize();
+			this.bounds = new Rectangle2D.Double(chunkX*size, chunkY*size, size, size);
+		}
+
+		@Override
+		public void load() {
+			shape = bounds;
+		}
+
+		@Override
+		public void unload() {
+			shape = null;
+		}
+
+		@Override
+		public void draw(Graphics2D g) {
+			lastDrawThread = Thread.currentThread();
+			draws.incrementAndGet();
+			g.fill(shape);
+		}
+
+		@Override
+		protected Rectangle2D getTileBounds() {
+			return bounds;
+		}
+	}
+
+	private static class TileLoader extends ChunkLoader<TileChunk> {
+		final Map<Long, TileChunk> chunks = new HashMap<>();
+
+		@Override
+		public synchronized TileChunk getChunk(int chunkX, int chunkY) {
+			long key = Int2D.pack(chunkX, chunkY);
+			TileChunk chunk = chunks.get(key);
+			if (chunk == null) {
+				chunk = new TileChunk(getManager(), chunkX, chunkY);
+				chunks.put(key, chunk);
+			}
+			return chunk;
+		}
+
+		synchronized Set<TileChunk> getCreated() {
+			return new HashSet<>(chunks.values());
+		}
+	}
+
+	/**
+	 * Touches exactly the chunks in wanted on each update
+	 */
+	private static class TestManager extends ChunkManager<TestChunk> {
+		final Set<TestChunk> wanted = new HashSet<>();
+
+		TestManager(TestLoader loader, int numWorkers) {
+			super(loader, numWorkers);
+		}
+
+		@Override
+		public void touchAll() {
+			for (TestChunk chunk : wanted) touch(chunk);
+		}
+
+		void cancel(TestChunk chunk) {
+			cancelLoad(chunk);
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		testCancelAndTouchAgain();
+		testDegradeUpgrade();
+		testShedLoaded();
+		testTileRendering();
+		testPrefetch();
+		testHandles();
+		testObservers();
+		System.out.println("All tests passed");
+	}
+
+	/**
+	 * A chunk cancelled during its batch gives up in load(), then is wanted again before the batch finishes.
+	 * It must be cleaned up and loaded again in full, never marked loaded after the load that gave up.
+	 */
+	private static void testCancelAndTouchAgain() throws InterruptedException {
+		TestLoader loader = new TestLoader();
+		loader.batchSize = 2;
+		TestManager manager = new TestManager(loader, 1);
+		TestChunk first = loader.getChunk(0, 0);
+		TestChunk second = loader.getChunk(1, 0);
+		first.gate = new CountDownLatch(1);
+		second.gate = new CountDownLatch(1);
+
+		manager.wanted.add(first);
+		manager.wanted.add(second);
+		manager.update();
+		manager.start();
+		try {
+			await(first.entered);
+			manager.cancel(first);
+			first.gate.countDown();
+			await(first.returned);
+			assertTrue(!first.complete);
+
+			manager.touch(first);
+			second.gate.countDown();
+			waitFor(() -> first.complete && manager.getNumLoaded() == 2);
+		} finally {
+			manager.stop();
+		}
+		assertEquals(first.partialLoads.get(), 0);
+		assertEquals(first.loads.get(), 2);
+		assertEquals(manager.getNumCancelledLoads(), 1);
+	}
+
+	/**
+	 * Chunks loaded degraded while the queue was over its limit are all reloaded in full, even though
+	 * every one of them is touched on every update (which cancels ordinary queued unloads)
+	 */
+	private static void testDegradeUpgrade() throws InterruptedException {
+		TestLoader loader = new TestLoader();
+		loader.loadMillis = 1;
+		TestManager manager = new TestManager(loader, 2);
+		manager.setShedPolicy(ChunkManager.ShedPolicy.DEGRADE);
+		manager.setMaxQueuedLoads(10);
+		for (int y = 0; y < 8; y++) {
+			for (int x = 0; x < 8; x++) manager.wanted.add(loader.getChunk(x, y));
+		}
+		AtomicInteger degraded = new AtomicInteger();
+		manager.addShedListener((chunk, reason) -> {
+			if (reason == ChunkManager.ShedReason.DEGRADED) degraded.incrementAndGet();
+		});
+
+		manager.update();
+		manager.start();
+		try {
+			updateUntil(manager, () -> {
+				for (TestChunk chunk : manager.wanted) {
+					if (!chunk.complete || chunk.loadedDegraded) return false;
+				}
+				return true;
+			});
+		} finally {
+			manager.stop();
+		}
+		assertTrue(degraded.get() > 0);
+		assertEquals(manager.getNumLoaded(), manager.wanted.size());
+	}
+
+	/**
+	 * Lowering maxLoaded below the wanted chunks unloads the farthest wanted chunks and keeps them unloaded
+	 */
+	private static void testShedLoaded() throws InterruptedException {
+		TestLoader loader = new TestLoader();
+		TestManager manager = new TestManager(loader, 2);
+		for (int y = 0; y < 8; y++) {
+			for (int x = 0; x < 8; x++) manager.wanted.add(loader.getChunk(x, y));
+		}
+		AtomicInteger shed = new AtomicInteger();
+		manager.addShedListener((chunk, reason) -> {
+			if (reason == ChunkManager.ShedReason.UNLOADED) shed.incrementAndGet();
+		});
+
+		// Stopping waits for the workers, so every chunk is LOADED rather than still finishing its load
+		manager.start();
+		try {
+			updateUntil(manager, () -> {
+				for (TestChunk chunk : manager.wanted) {
+					if (!chunk.complete) return false;
+				}
+				return manager.getNumLoaded() == 64;
+			});
+		} finally {
+			manager.stop();
+		}
+
+		manager.start();
+		try {
+			manager.setMaxLoaded(20);
+			updateUntil(manager, () -> manager.getNumLoaded() <= 20);
+			for (int i = 0; i < 50; i++) {
+				manager.update();
+				Thread.sleep(1);
+				assertTrue(manager.getNumLoaded() <= 20);
+			}
+		} finally {
+			manager.stop();
+		}
+		assertTrue(shed.get() >= 44);
+		int farthestKept = 0, nearestShed = Integer.MAX_VALUE;
+		for (TestChunk chunk : manager.wanted) {
+			if (chunk.complete) farthestKept = Math.max(farthestKept, chunk.distanceSq);
+			else nearestShed = Math.min(nearestShed, chunk.distanceSq);
+		}
+		assertTrue(farthestKept <= nearestShed);
+	}
+
+	/**
+	 * Tiles are rendered by the workers, both on load and after the tile scale changes,
+	 * and drawing the manager only blits them
+	 */
+	private static void testTileRendering() throws InterruptedException {
+		TileLoader loader = new TileLoader();
+		View2DChunkManager<TileChunk> manager = new View2DChunkManager<>(loader, 2);
+		double size = loader.getChunkSize();
+		manager.setView(new Rectangle2D.Double(0, 0, size*1.5, size*1.5));
+		manager.setTileScale(16 / size);
+		BufferedImage canvas = new BufferedImage(64, 64, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = canvas.createGraphics();
+		g.scale(16 / size, 16 / size);
+
+		manager.start();
+		try {
+			updateUntil(manager, () -> {
+				Set<TileChunk> created = loader.getCreated();
+				for (TileChunk chunk : created) {
+					if (chunk.draws.get() == 0) return false;
+				}
+				return !created.isEmpty() && manager.getNumLoaded() == created.size();
+			});
+			Set<TileChunk> chunks = loader.getCreated();
+			for (TileChunk chunk : chunks) assertEquals(chunk.draws.get(), 1);
+			for (int i = 0; i < 10; i++) manager.draw(g);
+
+			manager.setTileScale(64 / size);
+			updateUntil(manager, () -> {
+				manager.draw(g);
+				for (TileChunk chunk : chunks) {
+					if (chunk.draws.get() < 2) return false;
+				}
+				return true;
+			});
+			for (TileChunk chunk : chunks) {
+				assertTrue(chunk.draws.get() >= 2);
+				assertTrue(chunk.lastDrawThread != Thread.currentThread());
+			}
+		} finally {
+			manager.stop();
+			g.dispose();
+		}
+	}
+
+	/**
+	 * Panning steadily loads chunks ahead of the view before they are visible, and once the view
+	 * stops the prefetched chunks are unloaded again
+	 */
+	private static void testPrefetch() throws InterruptedException {
+		TileLoader loader = new TileLoader();
+		View2DChunkManager<TileChunk> manager = new View2DChunkManager<>(loader, 2);
+		double size = loader.getChunkSize();
+		manager.setTileScale(0);
+		manager.setPrefetchLookahead(4);
+
+		manager.start();
+		try {
+			// Half a chunk per update, so the view is predicted two chunks ahead
+			double x = 0;
+			for (int i = 0; i < 12; i++) {
+				manager.setView(new Rectangle2D.Double(x, size*0.25, size*2, size*0.5));
+				manager.update();
+				Thread.sleep(5);
+				x += size/2;
+			}
+			x -= size/2;
+			int lastVisible = (int) Math.floor((x + size*2) / size) + 1;
+			TileChunk ahead = loader.getChunk(lastVisible + 2, 0);
+			waitFor(() -> ahead.shape != null);
+
+			int visible = (lastVisible - (int) Math.floor(x / size) + 2) * 3;
+			updateUntil(manager, () -> ahead.shape == null && manager.getNumLoaded() == visible);
+		} finally {
+			manager.stop();
+		}
+	}
+
+	/**
+	 * Handles for one chunk share it, and it stays loaded until the last one is released
+	 */
+	private static void testHandles() throws InterruptedException {
+		TestLoader loader = new TestLoader();
+		StreamingChunkManager<TestChunk> manager = new StreamingChunkManager<>(loader, 2, 16);
+		StreamingChunkManager<TestChunk>.ChunkHandle first = manager.acquire(5, 5);
+		StreamingChunkManager<TestChunk>.ChunkHandle second = manager.acquire(5, 5);
+		assertTrue(first.getChunk() == null);
+
+		manager.start();
+		try {
+			updateUntil(manager, first::isLoaded);
+			TestChunk chunk = first.getChunk();
+			assertTrue(chunk == second.getChunk());
+			assertTrue(chunk.complete);
+
+			first.release();
+			for (int i = 0; i < 20; i++) {
+				manager.tick();
+				Thread.sleep(1);
+			}
+			assertTrue(second.isLoaded());
+			assertEquals(chunk.loads.get(), 1);
+
+			second.release();
+			updateUntil(manager, () -> manager.getNumLoaded() == 0);
+			assertTrue(!chunk.complete);
+		} finally {
+			manager.stop();
+		}
+
+		boolean threw = false;
+		try {
+			first.release();
+		} catch (IllegalStateException e) {
+			threw = true;
+		}
+		assertTrue(threw);
+	}
+
+	/**
+	 * An observer loads the chunks within its radius, and they are unloaded once it moves away or is removed
+	 */
+	private static void testObservers() throws InterruptedException {
+		TestLoader loader = new TestLoader();
+		StreamingChunkManager<TestChunk> manager = new StreamingChunkManager<>(loader, 2, 16);
+		double size = loader.getChunkSize();
+		StreamingChunkManager<TestChunk>.Observer observer = manager.addObserver(size/2, size/2, 1);
+
+		manager.start();
+		try {
+			updateUntil(manager, () -> countComplete(loader) == 5);
+			assertTrue(loader.getChunk(1, 0).complete && loader.getChunk(0, -1).complete);
+			assertTrue(!loader.getChunk(1, 1).complete);
+
+			observer.moveTo(10*size, 0);
+			updateUntil(manager, () -> countComplete(loader) == 5 && loader.getChunk(9, 0).complete && loader.getChunk(11, 0).complete
+					&& loader.getChunk(10, -1).complete && loader.getChunk(10, 0).complete && loader.getChunk(10, 1).complete);
+
+			observer.remove();
+			updateUntil(manager, () -> manager.getNumLoaded() == 0);
+			assertEquals(manager.getNumObservers(), 0);
+		} finally {
+			manager.stop();
+		}
+	}
+
+	private static int countComplete(TestLoader loader) {
+		int complete = 0;
+		synchronized (loader) {
+			for (TestChunk chunk : loader.chunks.values()) {
+				if (chunk.complete) complete++;
+			}
+		}
+		return complete;
+	}
+
+	private static void updateUntil(ChunkManager<?> manager, BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!condition.getAsBoolean()) {
+			if (System.nanoTime() > deadline) throw new RuntimeException("Timed out");
+			manager.update();
+			Thread.sleep(1);
+		}
+	}
+
+	private static void sleep(int millis) {
+		if (millis <= 0) return;
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			if (!latch.await(10, TimeUnit.SECONDS)) throw new RuntimeException("Timed out");
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!condition.getAsBoolean()) {
+			if (System.nanoTime() > deadline) throw new RuntimeException("Timed out");
+			Thread.sleep(1);
+		}
+	}
+
+	private static void assertTrue(boolean cond) {
+		if (!cond) throw new RuntimeException("Assertion failed");
+	}
+
+	private static void assertEquals(long i, long j) {
+		if (i != j) throw new RuntimeException("Assertion failed, expected "+j+" got "+i);
+	}
+
+}
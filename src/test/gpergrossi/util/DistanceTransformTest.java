@@ -1,6 +1,7 @@
 package test.gpergrossi.util;
 
 import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.util.Random;
@@ -12,12 +13,25 @@ import javax.swing.JLabel;
 import com.gpergrossi.util.data.Tuple2;
 import com.gpergrossi.util.geom.ranges.DistanceTransform;
 import com.gpergrossi.util.geom.ranges.Int2DRange;
+import com.gpergrossi.util.geom.ranges.Int3DRange;
 import com.gpergrossi.util.geom.vectors.Int2D;
 import com.gpergrossi.util.geom.vectors.Int2D.StoredBit;
 
 public class DistanceTransformTest {
 
 	public static void main(String[] args) {
+		Random checks = new Random(5523719L);
+		for (int i = 0; i < 100; i++) {
+			Int2DRange.Bits shape = randomShape(checks);
+			testTransform(shape);
+			testFeatureTransform(shape);
+			testLabelTransform(checks, shape);
+		}
+		for (int i = 0; i < 30; i++) {
+			testTransform3D(randomVolume(checks));
+		}
+		System.out.println("All tests passed");
+		if (GraphicsEnvironment.isHeadless()) return;
 		
 		final int minX = -200;
 		final int minY = -200;
@@ -68,6 +82,149 @@ public class DistanceTransformTest {
 		System.out.println("New method took "+durNew+" ms");
 	}
 	
+	private static Int2DRange.Bits randomShape(Random random) {
+		int minX = random.nextInt(100)-50;
+		int minY = random.nextInt(100)-50;
+		Int2DRange.Bits shape = new Int2DRange.Bits(minX, minY, minX+random.nextInt(70), minY+random.nextInt(40));
+		float density = random.nextFloat() * random.nextFloat() * 0.2f;
+		if (random.nextInt(20) == 0) density = 0;
+		for (int i = 0; i < shape.size(); i++) {
+			shape.set(i, random.nextFloat() < density);
+		}
+		return shape;
+	}
+	
+	private static Int3DRange.Bits randomVolume(Random random) {
+		int minX = random.nextInt(20)-10;
+		int minY = random.nextInt(20)-10;
+		int minZ = random.nextInt(20)-10;
+		Int3DRange.Bits shape = new Int3DRange.Bits(minX, minY, minZ, minX+random.nextInt(16), minY+random.nextInt(16), minZ+random.nextInt(16));
+		float density = random.nextFloat() * random.nextFloat() * 0.1f;
+		for (int z = shape.minZ; z <= shape.maxZ; z++) {
+			for (int y = shape.minY; y <= shape.maxY; y++) {
+				for (int x = shape.minX; x <= shape.maxX; x++) {
+					shape.set(x, y, z, random.nextFloat() < density);
+				}
+			}
+		}
+		return shape;
+	}
+	
+	/**
+	 * Squared distance from tile i to the nearest set tile, found by checking every set tile
+	 */
+	private static long bruteForceSquared(Int2DRange.Bits shape, int i) {
+		long best = Long.MAX_VALUE;
+		for (int j = 0; j < shape.size(); j++) {
+			if (shape.get(j)) best = Math.min(best, squaredDistance(shape, i, j));
+		}
+		return best;
+	}
+	
+	private static long squaredDistance(Int2DRange range, int i, int j) {
+		long dx = (i % range.width) - (j % range.width);
+		long dy = (i / range.width) - (j / range.width);
+		return dx*dx + dy*dy;
+	}
+	
+	private static void testTransform(Int2DRange.Bits shape) {
+		Tuple2<Int2DRange.Floats, Float> result = DistanceTransform.transform(shape);
+		float maxDist = 0;
+		for (int i = 0; i < shape.size(); i++) {
+			long expected = bruteForceSquared(shape, i);
+			float distance = result.first.get(i);
+			if (expected == Long.MAX_VALUE) {
+				assertTrue(distance == Float.POSITIVE_INFINITY);
+				maxDist = distance;
+				continue;
+			}
+			assertClose(distance, Math.sqrt(expected));
+			maxDist = Math.max(maxDist, distance);
+		}
+		assertClose(result.second, maxDist);
+	}
+	
+	/**
+	 * Ties may go to any of the nearest set tiles, so only the distance to the chosen one is compared
+	 */
+	private static void testFeatureTransform(Int2DRange.Bits shape) {
+		Int2DRange.Integers nearest = DistanceTransform.featureTransform(shape);
+		for (int i = 0; i < shape.size(); i++) {
+			long expected = bruteForceSquared(shape, i);
+			int feature = nearest.data[i];
+			if (expected == Long.MAX_VALUE) {
+				assertEquals(feature, -1);
+				continue;
+			}
+			assertTrue(shape.get(feature));
+			assertEquals(squaredDistance(shape, i, feature), expected);
+		}
+	}
+	
+	private static void testLabelTransform(Random random, Int2DRange.Bits shape) {
+		final int background = -7;
+		Int2DRange.Integers labels = new Int2DRange.Integers(shape.minX, shape.minY, shape.maxX, shape.maxY);
+		for (int i = 0; i < shape.size(); i++) {
+			labels.data[i] = shape.get(i) ? random.nextInt(5) : background;
+		}
+		Int2DRange.Integers spread = DistanceTransform.labelTransform(labels, background);
+		for (int i = 0; i < shape.size(); i++) {
+			long expected = bruteForceSquared(shape, i);
+			if (expected == Long.MAX_VALUE) {
+				assertEquals(spread.data[i], background);
+				continue;
+			}
+			boolean found = false;
+			for (int j = 0; j < shape.size() && !found; j++) {
+				found = shape.get(j) && labels.data[j] == spread.data[i] && squaredDistance(shape, i, j) == expected;
+			}
+			assertTrue(found);
+		}
+	}
+	
+	private static void testTransform3D(Int3DRange.Bits shape) {
+		Tuple2<Int3DRange.Floats, Float> result = DistanceTransform.transform(shape);
+		float maxDist = 0;
+		for (int z = shape.minZ; z <= shape.maxZ; z++) {
+			for (int y = shape.minY; y <= shape.maxY; y++) {
+				for (int x = shape.minX; x <= shape.maxX; x++) {
+					long best = Long.MAX_VALUE;
+					for (int sz = shape.minZ; sz <= shape.maxZ; sz++) {
+						for (int sy = shape.minY; sy <= shape.maxY; sy++) {
+							for (int sx = shape.minX; sx <= shape.maxX; sx++) {
+								if (!shape.get(sx, sy, sz)) continue;
+								long dx = x-sx, dy = y-sy, dz = z-sz;
+								best = Math.min(best, dx*dx + dy*dy + dz*dz);
+							}
+						}
+					}
+					float distance = result.first.get(x, y, z);
+					if (best == Long.MAX_VALUE) {
+						assertTrue(distance == Float.POSITIVE_INFINITY);
+						maxDist = distance;
+						continue;
+					}
+					assertClose(distance, Math.sqrt(best));
+					maxDist = Math.max(maxDist, distance);
+				}
+			}
+		}
+		assertClose(result.second, maxDist);
+	}
+	
+	private static void assertTrue(boolean cond) {
+		if (!cond) throw new RuntimeException("Assertion failed");
+	}
+	
+	private static void assertEquals(long i, long j) {
+		if (i != j) throw new RuntimeException("Assertion failed, expected "+j+" got "+i);
+	}
+	
+	private static void assertClose(double i, double j) {
+		if (i == j) return;
+		if (Math.abs(i - j) > 1e-4 * Math.max(1, j)) throw new RuntimeException("Assertion failed, expected "+j+" got "+i);
+	}
+	
 	public static final BufferedImage drawFloats(Int2DRange.Floats floats, float max) {
 		BufferedImage image = new BufferedImage(floats.width, floats.height, BufferedImage.TYPE_INT_ARGB);
 		int[] rgba = new int[image.getWidth()*image.getHeight()];
@@ -0,0 +1,122 @@
+package test.gpergrossi.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.gpergrossi.util.data.queue.IndexedHeap;
+
+public class IndexedHeapTest {
+
+	private static class Item {
+		final int id;
+		double key;
+		int slot = -1;
+
+		Item(int id) {
+			this.id = id;
+		}
+
+		public String toString() {
+			return "Item["+id+"]";
+		}
+	}
+
+	private static final IndexedHeap.SlotAccessor<Item> SLOTS = new IndexedHeap.SlotAccessor<Item>() {
+		public int getSlot(Item item) {
+			return item.slot;
+		}
+
+		public void setSlot(Item item, int slot) {
+			item.slot = slot;
+		}
+	};
+
+	public static void main(String[] args) {
+		Random random = new Random(90210L);
+		for (int arity = 2; arity <= 8; arity++) {
+			testRandomOperations(random, arity);
+		}
+		System.out.println("All tests passed");
+	}
+
+	private static void testRandomOperations(Random random, int arity) {
+		IndexedHeap<Item> heap = new IndexedHeap<>(arity, 1, SLOTS);
+		List<Item> expected = new ArrayList<>();
+		Item[] items = new Item[200];
+		for (int i = 0; i < items.length; i++) items[i] = new Item(i);
+
+		for (int i = 0; i < 20000; i++) {
+			Item item = items[random.nextInt(items.length)];
+			switch (random.nextInt(6)) {
+				case 0:
+				case 1:
+					item.key = random.nextInt(1000);
+					heap.offer(item, item.key);
+					if (!expected.contains(item)) expected.add(item);
+					break;
+				case 2:
+					assertEquals(heap.remove(item), expected.remove(item));
+					break;
+				case 3:
+					Item polled = heap.poll();
+					if (expected.isEmpty()) {
+						assertTrue(polled == null);
+						break;
+					}
+					assertEquals(polled.key, lowest(expected).key);
+					expected.remove(polled);
+					break;
+				case 4:
+					if (random.nextInt(50) != 0) break;
+					double offset = random.nextInt(100);
+					for (Item each : expected) each.key = (each.id * 7919) % 1000 + offset;
+					heap.rekeyAll(each -> each.key);
+					break;
+				case 5:
+					if (random.nextInt(50) != 0) break;
+					int mod = random.nextInt(5) + 2;
+					heap.removeIf(each -> each.id % mod == 0);
+					expected.removeIf(each -> each.id % mod == 0);
+					break;
+			}
+
+			assertEquals(heap.size(), expected.size());
+			assertEquals(heap.contains(item), expected.contains(item));
+			if (!expected.isEmpty()) assertEquals(heap.peekKey(), lowest(expected).key);
+		}
+
+		double last = Double.NEGATIVE_INFINITY;
+		while (!heap.isEmpty()) {
+			Item item = heap.poll();
+			assertTrue(item.key >= last);
+			assertTrue(item.slot == -1);
+			last = item.key;
+		}
+	}
+
+	private static Item lowest(List<Item> items) {
+		Item lowest = null;
+		for (Item item : items) {
+			if (lowest == null || item.key < lowest.key) lowest = item;
+		}
+		return lowest;
+	}
+
+	private static void assertTrue(boolean cond) {
+		if (!cond) throw new RuntimeException("Assertion failed");
+	}
+
+	private static void assertEquals(boolean i, boolean j) {
+		if (i != j) throw new RuntimeException("Assertion failed, expected "+j+" got "+i);
+	}
+
+	private static void assertEquals(int i, int j) {
+		if (i != j) throw new RuntimeException("Assertion failed, expected "+j+" got "+i);
+	}
+
+	private static void assertEquals(double i, double j) {
+		if (i != j) throw new RuntimeException("Assertion failed, expected "+j+" got "+i);
+	}
+
+}
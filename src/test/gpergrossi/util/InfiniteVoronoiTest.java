@@ -0,0 +1,233 @@
+package test.gpergrossi.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.gpergrossi.util.geom.shapes.Convex;
+import com.gpergrossi.util.geom.vectors.Double2D;
+import com.gpergrossi.util.geom.vectors.Int2D;
+import com.gpergrossi.voronoi.infinite.CellStore;
+import com.gpergrossi.voronoi.infinite.HierarchicalVoronoi;
+import com.gpergrossi.voronoi.infinite.InfiniteCell;
+import com.gpergrossi.voronoi.infinite.InfiniteVoronoi;
+import com.gpergrossi.voronoi.infinite.VoronoiMetrics;
+
+public class InfiniteVoronoiTest {
+
+	public static void main(String[] args) throws InterruptedException, IOException {
+		testConcurrentGetCell(InfiniteVoronoi.DEFAULT_REGION_SIZE);
+		testConcurrentGetCell(0);
+		testRetention();
+		testCellStore();
+		testHierarchyNesting(2);
+		testHierarchyNesting(4);
+		System.out.println("All tests passed");
+	}
+
+	/**
+	 * Many threads asking for the same cell at once all get one instance, built by one diagram
+	 */
+	private static void testConcurrentGetCell(int regionSize) throws InterruptedException {
+		final int numThreads = 16;
+		for (int round = 0; round < 20; round++) {
+			InfiniteVoronoi voronoi = new InfiniteVoronoi(64, round, regionSize, InfiniteVoronoi.DEFAULT_MAX_REGIONS);
+			InfiniteCell[] cells = new InfiniteCell[numThreads];
+			Throwable[] failures = new Throwable[numThreads];
+			CountDownLatch start = new CountDownLatch(1);
+			Thread[] threads = new Thread[numThreads];
+			for (int i = 0; i < numThreads; i++) {
+				final int index = i;
+				threads[i] = new Thread(() -> {
+					try {
+						start.await();
+						cells[index] = voronoi.getCell(3, -4);
+					} catch (Throwable t) {
+						failures[index] = t;
+					}
+				});
+				threads[i].start();
+			}
+			start.countDown();
+			for (Thread thread : threads) thread.join(TimeUnit.SECONDS.toMillis(10));
+
+			for (int i = 0; i < numThreads; i++) {
+				if (failures[i] != null) throw new RuntimeException(failures[i]);
+				assertTrue(cells[i] == cells[0]);
+			}
+			assertTrue(cells[0].isInitialized());
+			assertTrue(cells[0].getPolygon().contains(cells[0].getSite()));
+
+			VoronoiMetrics.Snapshot metrics = voronoi.getMetrics().snapshot();
+			assertEquals(metrics.builds, 1);
+			assertEquals(metrics.cacheMisses, 1);
+			assertEquals(metrics.cacheHits, numThreads - 1);
+			assertEquals(metrics.liveCells, 1);
+		}
+	}
+
+	/**
+	 * Released cells are retained up to the policy's limit, reserving a retained cell gives back the
+	 * same instance, and evicted cells are deleted for good (their reference count is the -1 sentinel)
+	 */
+	private static void testRetention() {
+		InfiniteVoronoi voronoi = new InfiniteVoronoi(64, 1);
+		voronoi.setRetentionPolicy(2, Long.MAX_VALUE, 0);
+		InfiniteCell a = voronoi.getCell(0, 0);
+		InfiniteCell b = voronoi.getCell(1, 0);
+		InfiniteCell c = voronoi.getCell(2, 0);
+		assertTrue(voronoi.getCell(0, 0) == a);
+
+		a.release();
+		assertEquals(voronoi.getNumRetained(), 0);
+		a.release();
+		b.release();
+		c.release();
+		assertEquals(voronoi.getNumRetained(), 2);
+		assertDeleted(a);
+		assertTrue(b.isInitialized() && c.isInitialized());
+
+		assertTrue(voronoi.getCell(1, 0) == b);
+		assertEquals(voronoi.getNumRetained(), 1);
+		InfiniteCell newA = voronoi.getCell(0, 0);
+		assertTrue(newA != a);
+		newA.release();
+		b.release();
+		assertDeleted(c);
+		assertEquals(voronoi.getNumRetained(), 2);
+
+		voronoi.clearRetained();
+		assertDeleted(newA);
+		assertDeleted(b);
+		assertEquals(voronoi.getNumRetained(), 0);
+		assertEquals(voronoi.getMetrics().snapshot().liveCells, 0);
+
+		// No retention, cells are deleted as soon as they are released
+		voronoi.setRetentionPolicy(0, Long.MAX_VALUE, 0);
+		InfiniteCell d = voronoi.getCell(5, 5);
+		d.reserve();
+		d.release();
+		assertTrue(d.isInitialized());
+		d.release();
+		assertDeleted(d);
+		assertEquals(voronoi.getNumRetained(), 0);
+		assertEquals(voronoi.getMetrics().snapshot().liveCells, 0);
+	}
+
+	/**
+	 * A region written by one InfiniteVoronoi is read back by a new one with the same seed instead of
+	 * being rebuilt, and a truncated file is ignored and rebuilt
+	 */
+	private static void testCellStore() throws IOException {
+		File directory = Files.createTempDirectory("cellstore").toFile();
+		try {
+			InfiniteVoronoi original = new InfiniteVoronoi(64, 99, 8, 4);
+			original.setCellStore(new CellStore(directory));
+			InfiniteCell written = original.getCell(3, 5);
+			assertEquals(original.getMetrics().snapshot().builds, 1);
+			assertEquals(original.getMetrics().snapshot().storeFailures, 0);
+
+			InfiniteVoronoi restarted = new InfiniteVoronoi(64, 99, 8, 4);
+			restarted.setCellStore(new CellStore(directory));
+			InfiniteCell read = restarted.getCell(3, 5);
+			assertEquals(restarted.getMetrics().snapshot().storeReads, 1);
+			assertEquals(restarted.getMetrics().snapshot().builds, 0);
+			assertSameCell(read, written);
+
+			File file = findRegionFile(directory);
+			long length = file.length();
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(length / 2);
+			}
+			InfiniteVoronoi truncated = new InfiniteVoronoi(64, 99, 8, 4);
+			truncated.setCellStore(new CellStore(directory));
+			InfiniteCell rebuilt = truncated.getCell(3, 5);
+			assertEquals(truncated.getMetrics().snapshot().storeReads, 0);
+			assertEquals(truncated.getMetrics().snapshot().builds, 1);
+			assertSameCell(rebuilt, written);
+			assertEquals(file.length(), length);
+		} finally {
+			deleteRecursively(directory);
+		}
+	}
+
+	/**
+	 * Every cell's site lies inside its parent's polygon, at every level
+	 */
+	private static void testHierarchyNesting(int branching) {
+		HierarchicalVoronoi hierarchy = new HierarchicalVoronoi(42, 1024, branching, 3);
+		for (int level = 1; level < hierarchy.getNumLevels(); level++) {
+			int extent = 3 * (int) Math.round(hierarchy.getGridSize(0) / hierarchy.getGridSize(level));
+			for (int cellY = -extent; cellY < extent; cellY++) {
+				for (int cellX = -extent; cellX < extent; cellX++) {
+					Double2D site = hierarchy.getSite(level, cellX, cellY);
+					long parentKey = hierarchy.getParentKey(level, cellX, cellY);
+					Convex parent = hierarchy.getPolygon(level-1, Int2D.unpackX(parentKey), Int2D.unpackY(parentKey));
+					assertTrue(parent.contains(site) || parent.distanceToEdge(site.x(), site.y()) < 1e-6);
+				}
+			}
+		}
+	}
+
+	private static void assertSameCell(InfiniteCell cell, InfiniteCell expected) {
+		Convex polygon = cell.getPolygon(), expectedPolygon = expected.getPolygon();
+		assertEquals(polygon.getNumVertices(), expectedPolygon.getNumVertices());
+		for (int v = 0; v < polygon.getNumVertices(); v++) {
+			assertTrue(polygon.getVertex(v).x() == expectedPolygon.getVertex(v).x());
+			assertTrue(polygon.getVertex(v).y() == expectedPolygon.getVertex(v).y());
+		}
+		Int2D[] neighbors = cell.getNeighbors(), expectedNeighbors = expected.getNeighbors();
+		assertEquals(neighbors.length, expectedNeighbors.length);
+		for (int n = 0; n < neighbors.length; n++) {
+			assertTrue(neighbors[n].x() == expectedNeighbors[n].x() && neighbors[n].y() == expectedNeighbors[n].y());
+		}
+	}
+
+	private static File findRegionFile(File directory) {
+		File[] files = directory.listFiles();
+		if (files == null) return null;
+		for (File file : files) {
+			if (file.isDirectory()) {
+				File found = findRegionFile(file);
+				if (found != null) return found;
+			} else if (file.getName().endsWith(".cells")) {
+				return file;
+			}
+		}
+		return null;
+	}
+
+	private static void deleteRecursively(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) deleteRecursively(child);
+		}
+		file.delete();
+	}
+
+	/**
+	 * A deleted cell has no polygon and can never be reserved again
+	 */
+	private static void assertDeleted(InfiniteCell cell) {
+		assertTrue(!cell.isInitialized());
+		boolean threw = false;
+		try {
+			cell.reserve();
+		} catch (IllegalStateException e) {
+			threw = true;
+		}
+		assertTrue(threw);
+	}
+
+	private static void assertTrue(boolean cond) {
+		if (!cond) throw new RuntimeException("Assertion failed");
+	}
+
+	private static void assertEquals(long i, long j) {
+		if (i != j) throw new RuntimeException("Assertion failed, expected "+j+" got "+i);
+	}
+
+}
@@ -0,0 +1,114 @@
+package test.gpergrossi.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.gpergrossi.util.geom.ranges.Int2DRange;
+import com.gpergrossi.util.geom.ranges.TiledRaster;
+import com.gpergrossi.util.geom.vectors.Int2D;
+
+public class TiledRasterTest {
+
+	/**
+	 * Counts the tiles it creates, spills to and loads from a map
+	 */
+	private static class CountingFloats extends TiledRaster.Floats {
+		final Map<Long, float[]> spilled = new HashMap<>();
+		int created, spills, loads;
+
+		CountingFloats(int tileShift, int maxTiles, float defaultValue) {
+			super(tileShift, maxTiles, defaultValue);
+			setSpillHandler((tileX, tileY, tile) -> {
+				spills++;
+				spilled.put(Int2D.pack(tileX, tileY), tile.data.clone());
+			});
+			setTileLoader(new TiledRaster.TileLoader<Int2DRange.Floats>() {
+				@Override
+				public boolean hasTile(int tileX, int tileY) {
+					return spilled.containsKey(Int2D.pack(tileX, tileY));
+				}
+
+				@Override
+				public boolean load(int tileX, int tileY, Int2DRange.Floats tile) {
+					float[] data = spilled.get(Int2D.pack(tileX, tileY));
+					if (data == null) return false;
+					loads++;
+					System.arraycopy(data, 0, tile.data, 0, data.length);
+					return true;
+				}
+			});
+		}
+
+		@Override
+		protected Int2DRange.Floats createTile(int minX, int minY, int maxX, int maxY) {
+			created++;
+			return super.createTile(minX, minY, maxX, maxY);
+		}
+	}
+
+	public static void main(String[] args) {
+		testEvictSpillReload();
+		testReadUnwritten();
+		System.out.println("All tests passed");
+	}
+
+	/**
+	 * Tiles over maxTiles are spilled least recently used first, and come back with their values when read again
+	 */
+	private static void testEvictSpillReload() {
+		CountingFloats raster = new CountingFloats(3, 2, 5);
+		raster.set(1, 1, 1);
+		raster.set(9, 1, 2);
+		raster.get(1, 1);
+		raster.set(17, 1, 3);
+		assertEquals(raster.getNumTiles(), 2);
+		assertEquals(raster.spills, 1);
+		assertTrue(raster.spilled.containsKey(Int2D.pack(1, 0)));
+
+		assertTrue(raster.get(9, 1) == 2);
+		assertTrue(raster.get(10, 1) == 5);
+		assertEquals(raster.loads, 1);
+		assertEquals(raster.getNumTiles(), 2);
+		assertEquals(raster.spills, 2);
+		assertTrue(raster.spilled.containsKey(Int2D.pack(0, 0)));
+
+		raster.setMaxTiles(1);
+		assertEquals(raster.getNumTiles(), 1);
+		Int2DRange.Floats dest = new Int2DRange.Floats(0, 0, 23, 7);
+		raster.read(dest);
+		assertTrue(dest.get(1, 1) == 1 && dest.get(9, 1) == 2 && dest.get(17, 1) == 3);
+		assertTrue(dest.get(0, 0) == 5 && dest.get(23, 7) == 5);
+		assertEquals(raster.getNumTiles(), 1);
+	}
+
+	/**
+	 * Reading tiles that were never written returns the default value without creating them, even with a loader
+	 */
+	private static void testReadUnwritten() {
+		CountingFloats raster = new CountingFloats(4, 4, -1);
+		raster.set(0, 0, 7);
+		assertEquals(raster.created, 1);
+
+		for (int y = -100; y < 100; y += 5) {
+			for (int x = -100; x < 100; x += 5) {
+				float expected = (x == 0 && y == 0) ? 7 : -1;
+				assertTrue(raster.get(x, y) == expected);
+			}
+		}
+		Int2DRange.Floats dest = new Int2DRange.Floats(-40, -40, 40, 40);
+		raster.read(dest);
+		assertTrue(dest.get(0, 0) == 7 && dest.get(-40, 40) == -1);
+		assertEquals(raster.created, 1);
+		assertEquals(raster.getNumTiles(), 1);
+		assertEquals(raster.loads, 0);
+	}
+
+	private static void assertTrue(boolean cond) {
+		if (!cond) throw new RuntimeException("Assertion failed");
+	}
+
+	private static void assertEquals(long i, long j) {
+		if (i != j) throw new RuntimeException("Assertion failed, expected "+j+" got "+i);
+	}
+
+}